@@ -0,0 +1,411 @@
+/**
+ * 	@file	AdaptiveHuffman.java
+ * 	@brief	One pass adaptive Huffman coding (FGK algorithm).
+ *		Encoder and decoder start from the same tree holding only
+ *		the NYT ('not yet transmitted') leaf and update it in the
+ *		same way after every symbol, so no frequency table is stored
+ *		and output can be written as soon as the first byte is read.
+ *		A symbol seen for the first time is sent as the codeword of
+ *		NYT followed by the symbol in SYMBOL_BITS bits. The stream
+ *		ends with the EOF symbol, so its length need not be known.
+ *
+ *		The tree is kept in arrays indexed by node number. Numbers
+ *		follow the sibling property: weights never decrease with
+ *		the node number and siblings are numbered next to each other.
+ *		Before a node's weight is incremented it is swapped with the
+ *		highest numbered node of the same weight (unless that is its
+ *		parent), which keeps the property.
+ *
+ *		File format: <magic + format><bits>
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class AdaptiveHuffman {
+	/* Symbol which ends the stream */
+	public static final int EOF = 256;
+
+	private static final int SYMBOLS = 257;
+	private static final int SYMBOL_BITS = 9;
+	private static final int NODES = 2 * SYMBOLS + 1;
+	private static final int ROOT = NODES - 1;
+
+	/* symbol[] values of nodes which are not leaves of a symbol */
+	private static final int INTERNAL = -1;
+	private static final int NYT = -2;
+
+	private final long[] weight = new long[NODES];
+	private final int[] parent = new int[NODES];
+	private final int[] left = new int[NODES];
+	private final int[] right = new int[NODES];
+	private final int[] symbol = new int[NODES];
+	private final int[] leaf = new int[SYMBOLS];	// node of each symbol, -1 if not seen
+	private final int[] path = new int[NODES];	// scratch space for codewords
+	private int nyt;
+	private int next;				// highest unused node number
+
+	/*
+	 Constructor for the initial tree: a single NYT leaf at the root.
+	*/
+	public AdaptiveHuffman() {
+		Arrays.fill(leaf, -1);
+		left[ROOT] = -1;
+		right[ROOT] = -1;
+		symbol[ROOT] = NYT;
+		parent[ROOT] = -1;
+		nyt = ROOT;
+		next = ROOT - 1;
+	}
+
+	/*
+	 Compresses the input stream until its end. Whenever the input has
+	 no more bytes available the complete bytes of output are flushed,
+	 so a live feed is not held back waiting for a buffer to fill.
+	*/
+	public static void encode(InputStream in, OutputStream out) throws IOException {
+		new DataOutputStream(out).writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_ADAPTIVE);
+
+		AdaptiveHuffman model = new AdaptiveHuffman();
+		BitWriter bits = new BitWriter(out);
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				model.encodeSymbol(buf[i] & 0xff, bits);
+			}
+			if (in.available() == 0) {
+				bits.flushBytes();
+			}
+		}
+
+		model.encodeSymbol(EOF, bits);
+		bits.flush();
+	}
+
+	/*
+	 Decompresses a stream written by encode() up to its EOF symbol.
+	 Decoded bytes are passed on whenever no more input is available.
+	*/
+	public static void decode(InputStream in, OutputStream out) throws IOException {
+		int magic = new DataInputStream(in).readInt();
+		if (magic != (HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_ADAPTIVE)) {
+			throw new IOException("Not an adaptive Huffman stream");
+		}
+
+		AdaptiveHuffman model = new AdaptiveHuffman();
+		BitReader bits = new BitReader(in);
+		byte[] buf = new byte[1 << 16];
+		int n = 0;
+		int c;
+		while ((c = model.decodeSymbol(bits)) != EOF) {
+			buf[n++] = (byte) c;
+			if (n == buf.length || (bits.buffered() == 0 && in.available() == 0)) {
+				out.write(buf, 0, n);
+				n = 0;
+			}
+		}
+		out.write(buf, 0, n);
+		out.flush();
+	}
+
+	/*
+	 Writes the codeword of symbol s and updates the tree.
+	*/
+	public void encodeSymbol(int s, BitWriter out) throws IOException {
+		int node = leaf[s];
+		if (node >= 0) {
+			writePath(node, out);
+		}
+		else {
+			writePath(nyt, out);
+			out.write(s, SYMBOL_BITS);
+			node = split(s);
+		}
+		update(node);
+	}
+
+	/*
+	 Reads the next symbol and updates the tree.
+	*/
+	public int decodeSymbol(BitReader in) throws IOException {
+		int node = ROOT;
+		while (left[node] >= 0) {
+			node = (in.read(1) == 0) ? left[node] : right[node];
+		}
+
+		int s = symbol[node];
+		if (s == NYT) {
+			s = in.read(SYMBOL_BITS);
+			if (s >= SYMBOLS || leaf[s] >= 0) {
+				throw new IOException("Corrupt adaptive Huffman stream");
+			}
+			node = split(s);
+		}
+		update(node);
+		return s;
+	}
+
+	/*
+	 Writes the codeword of a node: the path from the root, where a
+	 left child adds a 0 bit and a right child adds a 1 bit.
+	*/
+	private void writePath(int node, BitWriter out) throws IOException {
+		int length = 0;
+		while (node != ROOT) {
+			int p = parent[node];
+			path[length++] = (right[p] == node) ? 1 : 0;
+			node = p;
+		}
+
+		int code = 0;
+		int bits = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			code = (code << 1) | path[i];
+			if (++bits == 32) {
+				out.write(code, 32);
+				code = 0;
+				bits = 0;
+			}
+		}
+		out.write(code, bits);
+	}
+
+	/*
+	 Turns the NYT leaf into an internal node whose children are a new
+	 NYT leaf and a leaf for symbol s. Returns the new leaf.
+	*/
+	private int split(int s) {
+		int node = nyt;
+		int l = next - 1;
+		int r = next;
+		next -= 2;
+
+		left[node] = l;
+		right[node] = r;
+		symbol[node] = INTERNAL;
+
+		parent[l] = node;
+		left[l] = -1;
+		right[l] = -1;
+		symbol[l] = NYT;
+		weight[l] = 0;
+
+		parent[r] = node;
+		left[r] = -1;
+		right[r] = -1;
+		symbol[r] = s;
+		weight[r] = 0;
+
+		nyt = l;
+		leaf[s] = r;
+		return r;
+	}
+
+	/*
+	 Increments the weight of a node and all its ancestors, swapping
+	 each one with the leader of its weight block first.
+	*/
+	private void update(int node) {
+		while (true) {
+			int leader = node;
+			while (leader < ROOT && weight[leader + 1] == weight[node]) {
+				leader++;
+			}
+			if (leader != node && leader != parent[node]) {
+				swap(node, leader);
+				node = leader;
+			}
+
+			weight[node]++;
+			if (node == ROOT) {
+				return;
+			}
+			node = parent[node];
+		}
+	}
+
+	/*
+	 Swaps the subtrees at node numbers a and b (of equal weight).
+	 The nodes keep their positions and parents, only what hangs
+	 there is exchanged.
+	*/
+	private void swap(int a, int b) {
+		int t = symbol[a];
+		symbol[a] = symbol[b];
+		symbol[b] = t;
+
+		t = left[a];
+		left[a] = left[b];
+		left[b] = t;
+
+		t = right[a];
+		right[a] = right[b];
+		right[b] = t;
+
+		relink(a);
+		relink(b);
+	}
+
+	/*
+	 Points the children, leaf entry or NYT of a node back at it.
+	*/
+	private void relink(int node) {
+		if (left[node] >= 0) {
+			parent[left[node]] = node;
+			parent[right[node]] = node;
+		}
+		else if (symbol[node] == NYT) {
+			nyt = node;
+		}
+		else {
+			leaf[symbol[node]] = node;
+		}
+	}
+
+	/*
+	 Benchmark of the adaptive and the static (canonical) encoders on
+	 the file named by the first argument (alice30.txt by default).
+	 Input is fed in 4 KiB pieces like a live feed. Reports the time
+	 until the first compressed byte is written, the throughput of
+	 encoding and decoding, and the compressed size.
+	*/
+	public static void main(String[] args) throws IOException {
+		byte[] data = Files.readAllBytes(Paths.get(args.length > 0 ? args[0] : "alice30.txt"));
+
+		for (int run = 0; run < 5; run++) {
+			FirstByte adaptive = new FirstByte();
+			long start = System.nanoTime();
+			encode(new Feed(data), adaptive);
+			long adaptiveEncode = System.nanoTime() - start;
+			long adaptiveFirst = adaptive.first - start;
+
+			start = System.nanoTime();
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream(data.length);
+			decode(new ByteArrayInputStream(adaptive.toByteArray()), decoded);
+			long adaptiveDecode = System.nanoTime() - start;
+			check(data, decoded.toByteArray());
+
+			FirstByte canonical = new FirstByte();
+			start = System.nanoTime();
+			encodeStatic(new Feed(data), canonical);
+			long staticEncode = System.nanoTime() - start;
+			long staticFirst = canonical.first - start;
+
+			start = System.nanoTime();
+			decoded = new ByteArrayOutputStream(data.length);
+			decodeStatic(canonical.toByteArray(), decoded, data.length);
+			long staticDecode = System.nanoTime() - start;
+			check(data, decoded.toByteArray());
+
+			System.out.printf("run %d%n", run + 1);
+			report("adaptive", data.length, adaptive.size(), adaptiveFirst, adaptiveEncode, adaptiveDecode);
+			report("static", data.length, canonical.size(), staticFirst, staticEncode, staticDecode);
+		}
+	}
+
+	/*
+	 Static path for the benchmark: read everything, count, build the
+	 canonical code and only then write the header and codewords.
+	*/
+	private static void encodeStatic(InputStream in, OutputStream out) throws IOException {
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			all.write(buf, 0, n);
+		}
+		byte[] data = all.toByteArray();
+
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		Histogram.count(data, 0, data.length, freq);
+		CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq));
+
+		DataOutputStream header = new DataOutputStream(out);
+		table.writeLengths(header);
+		BitWriter bits = new BitWriter(out);
+		table.encode(data, 0, data.length, bits);
+		bits.flush();
+	}
+
+	private static void decodeStatic(byte[] encoded, OutputStream out, long count) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+		CodeTable table = CodeTable.canonical(CodeTable.readLengths(new DataInputStream(in), HuffmanCompress.ALPHABET_SIZE));
+		table.decode(new BitReader(in), out, count);
+	}
+
+	private static void check(byte[] expected, byte[] actual) {
+		if (!Arrays.equals(expected, actual)) {
+			throw new IllegalStateException("Round trip failed");
+		}
+	}
+
+	private static void report(String name, int size, int compressed, long first, long encode, long decode) {
+		System.out.printf("  %-8s first byte %8.3f ms  encode %7.1f MB/s  decode %7.1f MB/s  size %d%n",
+			name, first / 1e6, size / (encode / 1e3), size / (decode / 1e3), compressed);
+	}
+
+	/*
+	 Input stream which hands out 4 KiB per read and never has more
+	 available, like a socket.
+	*/
+	private static class Feed extends InputStream {
+		private final byte[] data;
+		private int pos;
+
+		Feed(byte[] bytes) {
+			data = bytes;
+		}
+
+		public int read() {
+			return (pos < data.length) ? (data[pos++] & 0xff) : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, 4096), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		public int available() {
+			return 0;
+		}
+	}
+
+	/*
+	 Output stream which remembers when the first byte was written.
+	*/
+	private static class FirstByte extends ByteArrayOutputStream {
+		long first;
+
+		private void mark() {
+			if (first == 0) {
+				first = System.nanoTime();
+			}
+		}
+
+		public synchronized void write(int b) {
+			mark();
+			super.write(b);
+		}
+
+		public synchronized void write(byte[] b, int off, int len) {
+			if (len > 0) {
+				mark();
+			}
+			super.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/**
+ * 	@file	BatchCompress.java
+ * 	@brief	Compresses every file of a directory tree or glob pattern
+ *		in the canonical format (see HuffmanCompress.encode()),
+ *		many files at a time. Each file goes through three stages:
+ *		it is read on an I/O executor, encoded on a fixed pool with
+ *		one thread per processor, and written on the I/O executor.
+ *		The I/O executor uses virtual threads when the JVM has them
+ *		(Java 21 on) and a fixed pool otherwise. At most MAX_PENDING
+ *		files per encoding thread are in memory at once.
+ *
+ *		A file that cannot be read, encoded or written is reported
+ *		and the rest of the batch goes on. Files larger than
+ *		IN_MEMORY_LIMIT are encoded from a mapping of the file
+ *		straight into the output file.
+ */
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public final class BatchCompress {
+	/* Appended to the name of every compressed file */
+	public static final String SUFFIX = ".huf";
+
+	/* Larger files are not read into memory */
+	public static final int IN_MEMORY_LIMIT = 64 << 20;
+
+	/* Files in memory per encoding thread */
+	public static final int MAX_PENDING = 4;
+
+	private final int threads;
+	private int maxCodeLength = DecodeTable.MAX_CODE_LENGTH;
+	private Path outputDirectory = null;
+
+	/*
+	 Constructor for a batch encoding on 'threads' threads.
+	*/
+	public BatchCompress(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread");
+		}
+		this.threads = threads;
+	}
+
+	/*
+	 Sets the longest codeword, as HuffmanCompress.setMaxCodeLength().
+	*/
+	public void setMaxCodeLength(int maxLength) {
+		if (maxLength < 8 || maxLength > DecodeTable.MAX_CODE_LENGTH) {
+			throw new IllegalArgumentException("Code length must be between 8 and " + DecodeTable.MAX_CODE_LENGTH);
+		}
+		maxCodeLength = maxLength;
+	}
+
+	/*
+	 Writes the compressed files under 'directory', at the same path
+	 relative to it as the input below its directory or pattern. By
+	 default (null) each compressed file is written next to its input.
+	*/
+	public void setOutputDirectory(String directory) {
+		outputDirectory = (directory != null) ? Paths.get(directory) : null;
+	}
+
+	/*
+	 Compresses every regular file matched by the sources, each a
+	 directory (searched recursively) or a glob pattern such as
+	 logs/*.json or data/**.txt. Files already ending in SUFFIX are
+	 skipped. Returns when every file is done.
+	*/
+	public Report compress(String... sources) throws IOException {
+		Map<Path, Path> files = new LinkedHashMap<>();
+		for (String source : sources) {
+			expand(source, files);
+		}
+
+		Report report = new Report();
+		ExecutorService io = ioExecutor(threads);
+		ExecutorService cpu = Executors.newFixedThreadPool(threads);
+		Semaphore pending = new Semaphore(MAX_PENDING * threads);
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		long start = System.nanoTime();
+		try {
+			for (Map.Entry<Path, Path> file : files.entrySet()) {
+				Path input = file.getKey();
+				Path output = (outputDirectory != null)
+					? outputDirectory.resolve(file.getValue().toString() + SUFFIX)
+					: Paths.get(input.toString() + SUFFIX);
+
+				pending.acquireUninterruptibly();
+				tasks.add(compress(input, output, io, cpu, report)
+					.whenComplete((v, e) -> pending.release()));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		}
+		finally {
+			io.shutdown();
+			cpu.shutdown();
+		}
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/*
+	 Returns the stages of one file. A failure in any stage is added to
+	 the report; the returned future always completes normally.
+	*/
+	private CompletableFuture<Void> compress(Path input, Path output, ExecutorService io, ExecutorService cpu, Report report) {
+		CompletableFuture<long[]> done = CompletableFuture.supplyAsync(() -> {
+			try {
+				if (output.getParent() != null) {
+					Files.createDirectories(output.getParent());
+				}
+				return Files.size(input);
+			}
+			catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, io).thenComposeAsync(size -> {
+			if (size > IN_MEMORY_LIMIT) {
+				// mapped and encoded in one stage on an encoding thread
+				return CompletableFuture.supplyAsync(() -> {
+					try {
+						HuffmanCompress.encodeCanonical(input.toString(), output.toString(), maxCodeLength, 0);
+						return new long[] {size, Files.size(output)};
+					}
+					catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}, cpu);
+			}
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return Files.readAllBytes(input);
+				}
+				catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, io).thenApplyAsync(data -> {
+				try {
+					return new byte[][] {data, HuffmanCompress.encodeCanonical(data, 0, data.length, maxCodeLength)};
+				}
+				catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, cpu).thenApplyAsync(result -> {
+				try {
+					Files.write(output, result[1]);
+					return new long[] {result[0].length, result[1].length};
+				}
+				catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, io);
+		}, io);
+
+		return done.handle((sizes, e) -> {
+			if (e != null) {
+				report.failed(input, (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e);
+			}
+			else {
+				report.done(sizes[0], sizes[1]);
+			}
+			return null;
+		});
+	}
+
+	/*
+	 Adds the files matched by a directory or glob pattern to 'files',
+	 each mapped to its path relative to the directory or to the part
+	 of the pattern before the first wildcard.
+	*/
+	static void expand(String source, Map<Path, Path> files) throws IOException {
+		Path base;
+		PathMatcher matcher = null;
+		Path path = Paths.get(source);
+		if (Files.isDirectory(path)) {
+			base = path;
+		}
+		else if (Files.isRegularFile(path)) {
+			files.put(path, path.getFileName());
+			return;
+		}
+		else {
+			// the directory part before the first segment with a wildcard
+			base = Paths.get("");
+			for (Path segment : path) {
+				if (segment.toString().matches(".*[*?\\[{].*")) {
+					break;
+				}
+				base = base.resolve(segment);
+			}
+			if (path.isAbsolute()) {
+				base = path.getRoot().resolve(base);
+			}
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + source);
+		}
+
+		try (Stream<Path> walk = Files.walk(base.toString().isEmpty() ? Paths.get(".") : base)) {
+			for (Path file : (Iterable<Path>) walk::iterator) {
+				Path name = base.toString().isEmpty() ? Paths.get(".").relativize(file) : file;
+				if (Files.isRegularFile(file) && !file.toString().endsWith(SUFFIX)
+						&& (matcher == null || matcher.matches(name))) {
+					files.put(name, (base.toString().isEmpty() ? name : base.relativize(file)));
+				}
+			}
+		}
+	}
+
+	/*
+	 Returns an executor for the reads and writes: a virtual thread per
+	 task when the JVM has virtual threads, otherwise a fixed pool with
+	 twice as many threads as encoding threads (each is mostly waiting).
+	*/
+	private static ExecutorService ioExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(2 * threads);
+		}
+	}
+
+	/*
+	 Totals of a batch and the files that failed.
+	*/
+	public static final class Report {
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytesIn = new AtomicLong();
+		private final AtomicLong bytesOut = new AtomicLong();
+		private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		private long nanos;
+
+		private void done(long in, long out) {
+			files.incrementAndGet();
+			bytesIn.addAndGet(in);
+			bytesOut.addAndGet(out);
+		}
+
+		private void failed(Path file, Throwable e) {
+			failures.add(file + ": " + e);
+		}
+
+		public long files() {
+			return files.get();
+		}
+
+		public long bytesIn() {
+			return bytesIn.get();
+		}
+
+		public long bytesOut() {
+			return bytesOut.get();
+		}
+
+		/*
+		 Returns "<file>: <error>" for each file that failed.
+		 */
+		public List<String> failures() {
+			synchronized (failures) {
+				return new ArrayList<>(failures);
+			}
+		}
+
+		public double seconds() {
+			return nanos / 1e9;
+		}
+
+		/*
+		 Original megabytes compressed per second.
+		*/
+		public double throughput() {
+			return bytesIn() / 1e6 / Math.max(seconds(), 1e-9);
+		}
+
+		public String toString() {
+			return String.format("%d files, %d -> %d bytes (%.1f%%) in %.2f s, %.1f MB/s, %d failed",
+				files(), bytesIn(), bytesOut(), 100.0 * bytesOut() / Math.max(bytesIn(), 1),
+				seconds(), throughput(), failures().size());
+		}
+	}
+
+	/*
+	 java BatchCompress [-o <output directory>] [-threads <n>] [-maxlen <bits>] <directory or glob>...
+	 Compresses the files and prints the totals followed by every file
+	 that failed.
+	*/
+	public static void main(String[] args) throws IOException {
+		int threads = HuffmanCompress.THREADS;
+		String output = null;
+		int maxLength = DecodeTable.MAX_CODE_LENGTH;
+		List<String> sources = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-o")) {
+				output = args[++i];
+			}
+			else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-maxlen")) {
+				maxLength = Integer.parseInt(args[++i]);
+			}
+			else {
+				sources.add(args[i]);
+			}
+		}
+		if (sources.isEmpty()) {
+			System.out.println("Usage: java BatchCompress [-o <output directory>] [-threads <n>] [-maxlen <bits>] <directory or glob>...");
+			return;
+		}
+
+		BatchCompress batch = new BatchCompress(threads);
+		batch.setOutputDirectory(output);
+		batch.setMaxCodeLength(maxLength);
+		Report report = batch.compress(sources.toArray(new String[0]));
+
+		System.out.println(report);
+		for (String failure : report.failures()) {
+			System.out.println("  " + failure);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * 	@file	BitReader.java
+ * 	@brief	Reads a bitstream through a 64-bit buffer so that a decoder
+ *		can peek at up to 32 bits at once instead of calling
+ *		BinaryIn.readBoolean() for every bit.
+ *		Bits are read most significant bit first, which is the
+ *		order BinaryOut writes them in. Past the end of the input
+ *		the stream reads as zeros (the padding added by flush()),
+ *		so callers must know how many symbols to decode.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class BitReader {
+	private static final int CHUNK = 1 << 16;
+
+	private final InputStream in;	// null when reading from an array
+	private final byte[] buf;
+	private int pos;
+	private int limit;
+
+	private long bits;		// buffered bits, left aligned
+	private int count;		// number of buffered bits
+
+	/*
+	 Constructor for reading from a stream. The stream is read in
+	 large chunks so there is no per-byte call into the stream.
+	*/
+	public BitReader(InputStream input) {
+		in = input;
+		buf = new byte[CHUNK];
+		pos = 0;
+		limit = 0;
+	}
+
+	/*
+	 Constructor for reading 'length' bytes of an array starting
+	 at 'offset'. The array is not copied.
+	*/
+	public BitReader(byte[] data, int offset, int length) {
+		in = null;
+		buf = data;
+		pos = offset;
+		limit = offset + length;
+	}
+
+	/*
+	 Tops up the bit buffer so that at least 57 bits can be peeked.
+	 Once the input is exhausted the remaining bits read as zeros.
+	*/
+	public void refill() throws IOException {
+		while (count <= 56) {
+			if (pos == limit && !fill()) {
+				count = 64;
+				return;
+			}
+			bits |= (long) (buf[pos++] & 0xff) << (56 - count);
+			count += 8;
+		}
+	}
+
+	/*
+	 Returns the next n bits (1 <= n <= 32) without consuming them.
+	 refill() must have been called since the last 32 bits consumed.
+	*/
+	public int peek(int n) {
+		return (int) (bits >>> (64 - n));
+	}
+
+	/*
+	 Drops the next n bits from the buffer.
+	*/
+	public void consume(int n) {
+		bits <<= n;
+		count -= n;
+	}
+
+	/*
+	 Reads and returns the next n bits (1 <= n <= 32).
+	 Unlike refill(), this only reads as many bytes as it needs, so it
+	 does not wait for more input than the next n bits on a live
+	 stream, and it throws at the end of the input instead of padding.
+	*/
+	public int read(int n) throws IOException {
+		while (count < n) {
+			if (pos == limit && !fill()) {
+				throw new EOFException("Unexpected end of bitstream");
+			}
+			bits |= (long) (buf[pos++] & 0xff) << (56 - count);
+			count += 8;
+		}
+		int x = peek(n);
+		consume(n);
+		return x;
+	}
+
+	/*
+	 Returns the number of input bytes read from the stream but not yet
+	 moved into the bit buffer.
+	*/
+	public int buffered() {
+		return limit - pos;
+	}
+
+	/*
+	 Reads the next chunk of the underlying stream into the buffer.
+	 Returns false at the end of the input.
+	*/
+	private boolean fill() throws IOException {
+		if (in == null) {
+			return false;
+		}
+
+		int n = in.read(buf, 0, buf.length);
+		while (n == 0) {
+			n = in.read(buf, 0, buf.length);
+		}
+		if (n < 0) {
+			return false;
+		}
+
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
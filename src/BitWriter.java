@@ -0,0 +1,123 @@
+/**
+ * 	@file	BitWriter.java
+ * 	@brief	Writes codewords to a bitstream through a 64-bit accumulator.
+ *		Codewords are shifted into the accumulator and every time
+ *		32 bits are pending they are stored as one big-endian word
+ *		in a byte array, which is written to the output stream when
+ *		it is full. This replaces one BinaryOut.write(boolean) call
+ *		per bit. The bit order is the same as BinaryOut's.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+public final class BitWriter {
+	private static final int CHUNK = 1 << 16;
+	private static final VarHandle WORD =
+		MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos;
+
+	private long acc;		// pending bits in the lowest 'n' bits
+	private int n;			// number of pending bits, always < 32
+	private long flushed;		// number of bits moved to the byte array
+
+	/*
+	 Constructor for the bit writer.
+	*/
+	public BitWriter(OutputStream output) {
+		this(output, CHUNK);
+	}
+
+	/*
+	 Constructor with a smaller buffer, for output of a few KiB.
+	*/
+	public BitWriter(OutputStream output, int bufferSize) {
+		out = output;
+		buf = new byte[Math.max(8, Math.min(bufferSize, CHUNK))];
+		pos = 0;
+	}
+
+	/*
+	 Writes the lowest 'length' bits of 'code' (0 <= length <= 32).
+	 The bits above 'length' must be zero.
+	*/
+	public void write(int code, int length) throws IOException {
+		acc = (acc << length) | (code & 0xffffffffL);
+		n += length;
+
+		if (n >= 32) {
+			n -= 32;
+			if (pos + 4 > buf.length) {
+				flushBuffer();
+			}
+			WORD.set(buf, pos, (int) (acc >>> n));
+			pos += 4;
+			flushed += 32;
+		}
+	}
+
+	/*
+	 Returns the number of bits written so far.
+	*/
+	public long bitCount() {
+		return flushed + n;
+	}
+
+	/*
+	 Pads the bitstream with 0s to a multiple of a byte and writes
+	 everything to the output stream.
+	*/
+	public void flush() throws IOException {
+		while (n > 0) {
+			int bits = Math.min(n, 8);
+			if (pos == buf.length) {
+				flushBuffer();
+			}
+			buf[pos++] = (byte) ((acc >>> (n - bits)) << (8 - bits));
+			n -= bits;
+			flushed += 8;
+		}
+		flushBuffer();
+		out.flush();
+	}
+
+	/*
+	 Writes every complete byte to the output stream and flushes it,
+	 without padding. Up to 7 bits stay pending, so more codewords can
+	 follow; used to keep the latency of a live stream low.
+	*/
+	public void flushBytes() throws IOException {
+		while (n >= 8) {
+			if (pos == buf.length) {
+				flushBuffer();
+			}
+			n -= 8;
+			buf[pos++] = (byte) (acc >>> n);
+			flushed += 8;
+		}
+		flushBuffer();
+		out.flush();
+	}
+
+	/*
+	 Flushes and closes the output stream.
+	*/
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	/*
+	 Writes the byte array to the output stream.
+	*/
+	private void flushBuffer() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+}
@@ -0,0 +1,520 @@
+/**
+ * 	@file	BlockCodec.java
+ * 	@brief	Block format for compressing large files on several threads.
+ *		The input is split into blocks which are compressed
+ *		independently, each with its own canonical code lengths,
+ *		so a pool of worker threads can encode or decode blocks at
+ *		the same time. Finished blocks are written in order and an
+ *		index at the end of the file records where each block starts.
+ *
+ *		File format:
+ *		<magic + format><block size>
+ *		<block>* <END>
+ *		<block count><(original offset, file offset) per block>
+ *		<index offset><INDEX_MAGIC>
+ *
+ *		Block format: <kind><original length><payload length><payload>
+ *		HUFFMAN payload: <code lengths><bits>
+ *		HUFFMAN4 payload: <code lengths><sizes of streams 0-2><4 streams>
+ *		ORDER1 payload: <context tables><bits>  (see ContextTables)
+ *		STORED payload: <original bytes>
+ *		BWT payload: <rows><symbol count><code lengths><bits>  (see BurrowsWheeler)
+ *		LZ77 payload: <literal/length code lengths><distance code lengths><bits>  (see Lz77)
+ *
+ *		A HUFFMAN4 block splits its bytes into STREAMS equal parts
+ *		(the last one may be shorter) and encodes each as its own
+ *		bitstream with the same code. Decoding one bitstream is a
+ *		chain where each codeword must be found before the next one
+ *		starts; the decoder advances the four streams in the same
+ *		loop so the CPU can overlap their work. A block which coding
+ *		would hardly shrink (see HuffmanCompress.worthCoding()) is
+ *		STORED as is.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class BlockCodec {
+	/* Default block size: large enough for the header to be negligible */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+	public static final int MIN_BLOCK_SIZE = 1 << 10;
+	public static final int MAX_BLOCK_SIZE = 64 << 20;
+
+	/* Block kinds */
+	public static final int HUFFMAN = 0;
+	public static final int HUFFMAN4 = 1;
+	public static final int ORDER1 = 2;
+	public static final int STORED = 3;
+	public static final int BWT = 4;
+	public static final int LZ77 = 5;
+	public static final int END = 0xff;
+
+	/* Size of <kind><original length><payload length> */
+	public static final int BLOCK_HEADER = 9;
+
+	/* Interleaved streams of a HUFFMAN4 block, used from INTERLEAVE_MIN bytes */
+	public static final int STREAMS = 4;
+	public static final int INTERLEAVE_MIN = 1 << 15;
+
+	/* Last 4 bytes of a block file */
+	public static final int INDEX_MAGIC = 0x48496478;	// "HIdx"
+
+	private BlockCodec() {
+	}
+
+	/*
+	 How blocks are coded. Options are immutable; each with...() method
+	 returns a copy with one setting changed, e.g.
+	 Options.DEFAULT.withBwt(true).withLevel(6).
+	*/
+	public static final class Options {
+		/* Order-0 Huffman codes of at most DecodeTable.MAX_CODE_LENGTH bits */
+		public static final Options DEFAULT = new Options(DecodeTable.MAX_CODE_LENGTH, false, false, 0);
+
+		final int maxLength;		// longest codeword
+		final boolean order1;		// ORDER1 blocks where smaller
+		final boolean bwt;		// BWT blocks where smaller
+		final int level;		// LZ77 level 1-9, 0 for no LZ77 blocks
+
+		private Options(int maxLength, boolean order1, boolean bwt, int level) {
+			this.maxLength = maxLength;
+			this.order1 = order1;
+			this.bwt = bwt;
+			this.level = level;
+		}
+
+		public Options withMaxLength(int bits) {
+			return new Options(bits, order1, bwt, level);
+		}
+
+		public Options withOrder1(boolean contextTables) {
+			return new Options(maxLength, contextTables, bwt, level);
+		}
+
+		public Options withBwt(boolean burrowsWheeler) {
+			return new Options(maxLength, order1, burrowsWheeler, level);
+		}
+
+		public Options withLevel(int lzLevel) {
+			if (lzLevel < 0 || lzLevel > 9) {
+				throw new IllegalArgumentException("Level must be between 0 and 9");
+			}
+			return new Options(maxLength, order1, bwt, lzLevel);
+		}
+	}
+
+	/*
+	 Compresses inputFile into outputFile in blocks of blockSize bytes,
+	 coded as set by 'options', using the given number of worker
+	 threads.
+	*/
+	public static void encode(String inputFile, String outputFile, int blockSize, Options options, int threads) throws IOException {
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+		     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16))) {
+			long size = in.size();
+			int blocks = (int) ((size + blockSize - 1) / blockSize);
+			long[] fileOffsets = new long[blocks];
+
+			out.writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_BLOCKED);
+			out.writeInt(blockSize);
+			long written = 8;
+
+			// keep a bounded number of blocks in flight and write them in order
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			int next = 0;
+			for (int b = 0; b < blocks; b++) {
+				final long position = (long) b * blockSize;
+				final int length = (int) Math.min(blockSize, size - position);
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return encodeBlock(read(in, position, length), 0, length, options);
+					}
+				}));
+
+				while (pending.size() > 2 * threads || (b == blocks - 1 && !pending.isEmpty())) {
+					byte[] block = get(pending.remove());
+					fileOffsets[next++] = written;
+					out.write(block);
+					written += block.length;
+				}
+			}
+
+			long[] rawOffsets = new long[blocks];
+			for (int b = 0; b < blocks; b++) {
+				rawOffsets[b] = (long) b * blockSize;
+			}
+			writeIndex(out, written, rawOffsets, fileOffsets, blocks);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 Decompresses a block file using the given number of worker threads.
+	 The block index is used to hand each thread its own block.
+	*/
+	public static void decode(String inputFile, String outputFile, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+		     OutputStream out = new FileOutputStream(outputFile)) {
+			long[] fileOffsets = readIndex(in)[1];
+
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			for (int b = 0; b < fileOffsets.length; b++) {
+				final long position = fileOffsets[b];
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return decodeBlock(in, position);
+					}
+				}));
+
+				while (pending.size() > 2 * threads || (b == fileOffsets.length - 1 && !pending.isEmpty())) {
+					out.write(get(pending.remove()));
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 Returns 'length' bytes of the original file starting at 'offset'
+	 (fewer at the end of the file). Only the blocks holding the range
+	 are read and decoded; the block index gives the original offset
+	 of every block.
+	*/
+	public static byte[] decodeRange(String inputFile, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Negative offset or length");
+		}
+		try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+			long[][] index = readIndex(in);
+			long[] rawOffsets = index[0];
+			long[] fileOffsets = index[1];
+
+			// last block starting at or before the offset
+			int b = Arrays.binarySearch(rawOffsets, offset);
+			if (b < 0) {
+				b = -b - 2;
+			}
+			while (b > 0 && rawOffsets[b - 1] == rawOffsets[b]) {
+				b--;	// empty blocks share the offset of the next one
+			}
+
+			// clamp to the original size: the last block's offset and length
+			int blocks = fileOffsets.length;
+			long size = (blocks == 0) ? 0
+				: rawOffsets[blocks - 1] + ByteBuffer.wrap(read(in, fileOffsets[blocks - 1] + 1, 4)).getInt();
+			length = (int) Math.max(0, Math.min(length, size - offset));
+
+			byte[] range = new byte[length];
+			int n = 0;
+			for (b = Math.max(b, 0); b < fileOffsets.length && n < length; b++) {
+				byte[] block = decodeBlock(in, fileOffsets[b]);
+				long from = offset + n - rawOffsets[b];
+				if (from < block.length) {
+					int k = (int) Math.min(block.length - from, length - n);
+					System.arraycopy(block, (int) from, range, n, k);
+					n += k;
+				}
+			}
+			return (n == length) ? range : Arrays.copyOf(range, n);
+		}
+	}
+
+	/*
+	 Compresses src[offset..offset+length) into a block, with codewords
+	 of at most maxLength bits.
+	*/
+	public static byte[] encodeBlock(byte[] src, int offset, int length, int maxLength) throws IOException {
+		return encodeBlock(src, offset, length, Options.DEFAULT.withMaxLength(maxLength));
+	}
+
+	/*
+	 Compresses src[offset..offset+length) into a block. With the bwt
+	 option and an LZ77 level the BWT and LZ77 blocks are tried, and
+	 the smallest is written if it is smaller than an order-0 block.
+	 Otherwise, with order1 an ORDER1 block is written when its context
+	 tables are expected to make it smaller than an order-0 block.
+	*/
+	public static byte[] encodeBlock(byte[] src, int offset, int length, Options options) throws IOException {
+		int maxLength = options.maxLength;
+		byte[] best = null;
+		if (options.bwt && length <= BurrowsWheeler.MAX_LENGTH) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 4 + 1024);
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeByte(BWT);
+			out.writeInt(length);
+			out.writeInt(0);		// payload length, filled in below
+			BurrowsWheeler.encode(src, offset, length, maxLength, out);
+			best = buf.toByteArray();
+		}
+		if (options.level > 0) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 3 + 1024);
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeByte(LZ77);
+			out.writeInt(length);
+			out.writeInt(0);		// payload length, filled in below
+			Lz77.encode(src, offset, length, options.level, maxLength, out);
+			if (best == null || buf.size() < best.length) {
+				best = buf.toByteArray();
+			}
+		}
+		if (best != null) {
+			long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+			Histogram.count(src, offset, length, freq);
+			CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, maxLength));
+			long order0 = Math.min(table.lengthsSize() + table.encodedSize(freq), length);
+			if (best.length < BLOCK_HEADER + order0) {
+				ByteBuffer.wrap(best).putInt(5, best.length - BLOCK_HEADER);
+				return best;
+			}
+		}
+
+		ContextTables contexts = options.order1 ? ContextTables.build(src, offset, length, maxLength) : null;
+		if (contexts != null) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 2 + 4096);
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeByte(ORDER1);
+			out.writeInt(length);
+			out.writeInt(0);		// payload length, filled in below
+			contexts.writeHeader(out);
+
+			BitWriter bits = new BitWriter(buf);
+			contexts.encode(src, offset, length, bits);
+			bits.flush();
+
+			byte[] block = buf.toByteArray();
+			ByteBuffer.wrap(block).putInt(5, block.length - BLOCK_HEADER);
+			return block;
+		}
+
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		Histogram.count(src, offset, length, freq);
+		CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, maxLength));
+		if (!HuffmanCompress.worthCoding(length, table, freq)) {
+			byte[] block = new byte[BLOCK_HEADER + length];
+			ByteBuffer.wrap(block).put((byte) STORED).putInt(length).putInt(length);
+			System.arraycopy(src, offset, block, BLOCK_HEADER, length);
+			return block;
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 2 + 256);
+		DataOutputStream out = new DataOutputStream(buf);
+		boolean interleave = length >= INTERLEAVE_MIN;
+		out.writeByte(interleave ? HUFFMAN4 : HUFFMAN);
+		out.writeInt(length);
+		out.writeInt(0);		// payload length, filled in below
+		table.writeLengths(out);
+
+		if (interleave) {
+			int segment = (length + STREAMS - 1) / STREAMS;
+			ByteArrayOutputStream[] streams = new ByteArrayOutputStream[STREAMS];
+			for (int k = 0; k < STREAMS; k++) {
+				int start = k * segment;
+				int n = Math.min(segment, length - start);
+				streams[k] = new ByteArrayOutputStream(n / 2 + 16);
+				BitWriter bits = new BitWriter(streams[k]);
+				table.encode(src, offset + start, n, bits);
+				bits.flush();
+			}
+			for (int k = 0; k < STREAMS - 1; k++) {
+				out.writeInt(streams[k].size());
+			}
+			for (ByteArrayOutputStream stream : streams) {
+				stream.writeTo(out);
+			}
+		}
+		else {
+			BitWriter bits = new BitWriter(buf);
+			table.encode(src, offset, length, bits);
+			bits.flush();
+		}
+
+		byte[] block = buf.toByteArray();
+		ByteBuffer.wrap(block).putInt(5, block.length - BLOCK_HEADER);
+		return block;
+	}
+
+	/*
+	 Returns the original bytes of a block from its kind, original
+	 length and payload.
+	*/
+	public static byte[] decodePayload(int kind, int length, byte[] payload, int offset, int size) throws IOException {
+		if (kind != HUFFMAN && kind != HUFFMAN4 && kind != ORDER1 && kind != STORED && kind != BWT && kind != LZ77) {
+			throw new IOException("Unknown block kind " + kind);
+		}
+		if (kind == BWT) {
+			return BurrowsWheeler.decode(payload, offset, size, length);
+		}
+		if (kind == LZ77) {
+			return Lz77.decode(payload, offset, size, length);
+		}
+		if (kind == STORED) {
+			if (size != length) {
+				throw new IOException("Corrupt block: stored block of " + size + " bytes");
+			}
+			return Arrays.copyOfRange(payload, offset, offset + size);
+		}
+
+		byte[] dst = new byte[length];
+		ByteArrayInputStream in = new ByteArrayInputStream(payload, offset, size);
+		DataInputStream data = new DataInputStream(in);
+		if (kind == ORDER1) {
+			ContextTables contexts = ContextTables.readHeader(data);
+			int header = size - in.available();
+			contexts.decode(new BitReader(payload, offset + header, size - header), dst, 0, length);
+			return dst;
+		}
+		CodeTable table = CodeTable.canonical(CodeTable.readLengths(data, HuffmanCompress.ALPHABET_SIZE));
+
+		if (kind == HUFFMAN) {
+			int header = size - in.available();
+			table.decode(new BitReader(payload, offset + header, size - header), dst, 0, length);
+			return dst;
+		}
+
+		if (length < STREAMS) {
+			throw new IOException("Corrupt block: interleaved block of " + length + " bytes");
+		}
+		int[] sizes = new int[STREAMS];
+		int last = in.available() - 4 * (STREAMS - 1);
+		for (int k = 0; k < STREAMS - 1; k++) {
+			sizes[k] = data.readInt();
+			last -= sizes[k];
+			if (sizes[k] < 0 || last < 0) {
+				throw new IOException("Corrupt block: bad stream sizes");
+			}
+		}
+		sizes[STREAMS - 1] = last;
+
+		int[] starts = new int[STREAMS];
+		int position = offset + size - in.available();
+		for (int k = 0; k < STREAMS; k++) {
+			starts[k] = position;
+			position += sizes[k];
+		}
+		table.multiSymbolTable().decode4(payload, starts, sizes, dst, 0, (length + STREAMS - 1) / STREAMS, length);
+		return dst;
+	}
+
+	/*
+	 Reads and decodes the block starting at 'position' in the file.
+	*/
+	private static byte[] decodeBlock(FileChannel in, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(read(in, position, BLOCK_HEADER));
+		int kind = header.get() & 0xff;
+		int length = header.getInt();
+		int size = header.getInt();
+
+		byte[] payload = read(in, position + BLOCK_HEADER, size);
+		return decodePayload(kind, length, payload, 0, size);
+	}
+
+	/*
+	 Writes the END marker, the index of the first 'blocks' blocks and
+	 the trailer. 'written' is the number of bytes written before the
+	 END marker.
+	*/
+	public static void writeIndex(DataOutputStream out, long written, long[] rawOffsets, long[] fileOffsets, int blocks) throws IOException {
+		out.writeByte(END);
+		long indexOffset = written + 1;
+
+		out.writeInt(blocks);
+		for (int b = 0; b < blocks; b++) {
+			out.writeLong(rawOffsets[b]);
+			out.writeLong(fileOffsets[b]);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(INDEX_MAGIC);
+	}
+
+	/*
+	 Returns the original offset and the file offset of each block
+	 ({ original offsets, file offsets }) from the index at the end of
+	 a block file.
+	*/
+	private static long[][] readIndex(FileChannel in) throws IOException {
+		long size = in.size();
+		if (size < 8 + 1 + 4 + 12) {
+			throw new IOException("Not a block file");
+		}
+
+		ByteBuffer trailer = ByteBuffer.wrap(read(in, size - 12, 12));
+		long indexOffset = trailer.getLong();
+		if (trailer.getInt() != INDEX_MAGIC || indexOffset < 9 || indexOffset > size - 16) {
+			throw new IOException("Missing block index");
+		}
+
+		ByteBuffer index = ByteBuffer.wrap(read(in, indexOffset, (int) (size - 12 - indexOffset)));
+		int blocks = index.getInt();
+		if (index.remaining() != 16L * blocks) {
+			throw new IOException("Corrupt block index");
+		}
+		long[] rawOffsets = new long[blocks];
+		long[] fileOffsets = new long[blocks];
+		for (int b = 0; b < blocks; b++) {
+			rawOffsets[b] = index.getLong();
+			fileOffsets[b] = index.getLong();
+		}
+		return new long[][] { rawOffsets, fileOffsets };
+	}
+
+	/*
+	 Reads 'length' bytes at 'position' of the file. Positional reads
+	 let several threads share one channel.
+	*/
+	static byte[] read(FileChannel in, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (in.read(buf, position + buf.position()) < 0) {
+				throw new EOFException("Unexpected end of file");
+			}
+		}
+		return buf.array();
+	}
+
+	/*
+	 Waits for a block and rethrows the worker's exception.
+	*/
+	private static byte[] get(Future<byte[]> block) throws IOException {
+		try {
+			return block.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,472 @@
+/**
+ * 	@file	BurrowsWheeler.java
+ * 	@brief	bzip2 style pipeline for the BWT block kind of BlockCodec:
+ *
+ *		1. Burrows-Wheeler transform: the bytes preceding each
+ *		   suffix of the block, in suffix order. Bytes followed by
+ *		   the same context end up next to each other, so the output
+ *		   has long runs of few distinct bytes.
+ *		2. Move-to-front: each byte becomes its position in a list
+ *		   of recently used bytes, which turns those runs into
+ *		   small numbers, mostly zeros.
+ *		3. Zero run length coding: a run of zeros is written as its
+ *		   length in bijective base 2 with the digits RUNA (1) and
+ *		   RUNB (2), and MTF value v > 0 becomes symbol v + 1.
+ *		4. Canonical Huffman codes for the 257 resulting symbols.
+ *
+ *		The suffix array is built with SA-IS (induced sorting) in
+ *		O(n) time. A virtual end marker smaller than every byte is
+ *		appended; its row of the transform is not stored but its
+ *		index ('primary') is, which is all the inverse needs. The
+ *		rows of three more suffixes let the inverse rebuild four
+ *		parts of the block at the same time.
+ *
+ *		Payload: <primary><3 rows><symbol count><code lengths><bits>
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class BurrowsWheeler {
+	/* Zero run digits and the alphabet after run length coding */
+	public static final int RUNA = 0;
+	public static final int RUNB = 1;
+	public static final int SYMBOLS = HuffmanCompress.ALPHABET_SIZE + 1;
+
+	/* Longest block: the inverse packs a row number and a byte in an int */
+	public static final int MAX_LENGTH = (1 << 24) - 2;
+
+	/* Independent chains followed by the inverse transform */
+	public static final int CHAINS = 4;
+
+	private BurrowsWheeler() {
+	}
+
+	/*
+	 Writes the payload of src[offset..offset+length) to out, with
+	 codewords of at most maxLength bits, or of
+	 HuffmanCompress.lengthLimit() bits when more distinct symbols
+	 are used than maxLength bits can tell apart.
+	*/
+	public static void encode(byte[] src, int offset, int length, int maxLength, DataOutputStream out) throws IOException {
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("BWT blocks hold at most " + MAX_LENGTH + " bytes");
+		}
+		byte[] bwt = new byte[length];
+		int[] rows = transform(src, offset, length, bwt);
+		int[] symbols = new int[length + 1];
+		int n = runLengths(moveToFront(bwt), symbols);
+
+		long[] freq = new long[SYMBOLS];
+		for (int i = 0; i < n; i++) {
+			freq[symbols[i]]++;
+		}
+		// up to 257 symbols (the run codes and the ranks 1-255) may not
+		// fit in maxLength bits
+		CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, HuffmanCompress.lengthLimit(freq, maxLength)));
+
+		for (int row : rows) {
+			out.writeInt(row);
+		}
+		out.writeInt(n);
+		table.writeLengths(out);
+		out.flush();
+
+		BitWriter bits = new BitWriter(out, length / 3 + 64);
+		table.encode(symbols, 0, n, bits);
+		bits.flush();
+	}
+
+	/*
+	 Returns the original 'length' bytes of the payload in
+	 payload[offset..offset+size).
+	*/
+	public static byte[] decode(byte[] payload, int offset, int size, int length) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(payload, offset, size);
+		DataInputStream header = new DataInputStream(in);
+		int[] rows = new int[CHAINS];
+		for (int k = 0; k < CHAINS; k++) {
+			rows[k] = header.readInt();
+			if (rows[k] < 0 || rows[k] > length) {
+				throw new IOException("Corrupt BWT block header");
+			}
+		}
+		int n = header.readInt();
+		if (n < 0 || n > length || length > MAX_LENGTH) {
+			throw new IOException("Corrupt BWT block header");
+		}
+		DecodeTable table = CodeTable.canonical(CodeTable.readLengths(header, SYMBOLS)).decodeTable();
+		BitReader bits = new BitReader(payload, offset + size - in.available(), in.available());
+
+		// undo the run length coding and move-to-front in one pass
+		byte[] bwt = new byte[length];
+		byte[] order = new byte[HuffmanCompress.ALPHABET_SIZE];
+		for (int c = 0; c < order.length; c++) {
+			order[c] = (byte) c;
+		}
+		int i = 0;
+		int run = 0;
+		int weight = 1;
+		for (int k = 0; k < n; k++) {
+			int s = table.decodeSymbol(bits);
+			if (s <= RUNB) {
+				run += weight << s;
+				weight <<= 1;
+				if (run > length - i) {
+					throw new IOException("Corrupt BWT block: run past the end");
+				}
+				continue;
+			}
+			if (run > 0) {
+				Arrays.fill(bwt, i, i + run, order[0]);
+				i += run;
+				run = 0;
+			}
+			weight = 1;
+			if (i == length) {
+				throw new IOException("Corrupt BWT block: symbol past the end");
+			}
+			int v = s - 1;
+			byte c = order[v];
+			System.arraycopy(order, 0, order, 1, v);
+			order[0] = c;
+			bwt[i++] = c;
+		}
+		if (run > 0) {
+			Arrays.fill(bwt, i, i + run, order[0]);
+			i += run;
+		}
+		if (i != length) {
+			throw new IOException("Corrupt BWT block: " + i + " of " + length + " bytes");
+		}
+		return inverse(bwt, rows);
+	}
+
+	/*
+	 Writes the Burrows-Wheeler transform of src[offset..offset+length)
+	 to dst. Returns the row of the end marker ('primary') followed by
+	 the rows of the suffixes starting at k * (length / CHAINS) for
+	 k = 1..CHAINS-1, where the inverse starts its other chains.
+	*/
+	public static int[] transform(byte[] src, int offset, int length, byte[] dst) {
+		int[] s = new int[length + 1];
+		for (int i = 0; i < length; i++) {
+			s[i] = (src[offset + i] & 0xff) + 1;
+		}
+		int[] sa = new int[length + 1];
+		suffixArray(s, sa, length + 1, SYMBOLS);
+
+		// row 0 is the end marker's own suffix; row r holds the byte
+		// before suffix sa[r], or the end marker when sa[r] == 0
+		int[] rows = new int[CHAINS];
+		int segment = length / CHAINS;
+		int k = 0;
+		for (int r = 0; r <= length; r++) {
+			int p = sa[r];
+			if (p == 0) {
+				rows[0] = r;
+			}
+			else {
+				dst[k++] = src[offset + p - 1];
+			}
+			if (segment > 0 && p % segment == 0 && p / segment > 0 && p / segment < CHAINS) {
+				rows[p / segment] = r;
+			}
+		}
+		return rows;
+	}
+
+	/*
+	 Returns the bytes whose transform is bwt, with the rows returned
+	 by transform().
+
+	 Each step of the inverse goes from a row to the row of the suffix
+	 one byte earlier, a random access into an array as large as the
+	 block. The steps of one chain depend on each other, so CHAINS
+	 chains, each rebuilding its own part of the block, are advanced
+	 in the same loop and their memory accesses overlap.
+	*/
+	public static byte[] inverse(byte[] bwt, int[] rows) {
+		int n = bwt.length;
+		int primary = rows[0];
+
+		// next[c]: row of the first suffix starting with c, after the end marker
+		int[] next = new int[HuffmanCompress.ALPHABET_SIZE];
+		for (byte b : bwt) {
+			next[b & 0xff]++;
+		}
+		int sum = 1;
+		for (int c = 0; c < next.length; c++) {
+			int count = next[c];
+			next[c] = sum;
+			sum += count;
+		}
+
+		// lf[r]: row of the suffix that starts one byte earlier than row r's,
+		// with row r's byte in the low 8 bits so each step is one access
+		int[] lf = new int[n + 1];
+		for (int r = 0; r <= n; r++) {
+			if (r != primary) {
+				int c = bwt[(r < primary) ? r : r - 1] & 0xff;
+				lf[r] = (next[c]++ << 8) | c;
+			}
+		}
+
+		// chain k rebuilds dst[k * segment..(k + 1) * segment) backwards from
+		// the suffix after it; the last chain starts at the end marker
+		byte[] dst = new byte[n];
+		int segment = n / CHAINS;
+		int e0 = lf[rows[1]], e1 = lf[rows[2]], e2 = lf[rows[3]], e3 = lf[0];
+		int i3 = n - 1;
+		if (segment > 0) {
+			for (int j = segment - 1; j >= 0; j--, i3--) {
+				dst[j] = (byte) e0;
+				dst[segment + j] = (byte) e1;
+				dst[2 * segment + j] = (byte) e2;
+				dst[i3] = (byte) e3;
+				e0 = lf[e0 >>> 8];
+				e1 = lf[e1 >>> 8];
+				e2 = lf[e2 >>> 8];
+				e3 = lf[e3 >>> 8];
+			}
+		}
+		for (; i3 >= (CHAINS - 1) * segment; i3--) {
+			dst[i3] = (byte) e3;
+			e3 = lf[e3 >>> 8];
+		}
+		return dst;
+	}
+
+	/*
+	 Replaces each byte by its position in the list of bytes ordered
+	 by most recent use, in place. Returns the array.
+	*/
+	static byte[] moveToFront(byte[] data) {
+		byte[] order = new byte[HuffmanCompress.ALPHABET_SIZE];
+		for (int c = 0; c < order.length; c++) {
+			order[c] = (byte) c;
+		}
+		for (int i = 0; i < data.length; i++) {
+			byte c = data[i];
+			if (order[0] == c) {
+				data[i] = 0;
+				continue;
+			}
+			int v = 1;
+			byte previous = order[0];
+			while (order[v] != c) {
+				byte t = order[v];
+				order[v] = previous;
+				previous = t;
+				v++;
+			}
+			order[v] = previous;
+			order[0] = c;
+			data[i] = (byte) v;
+		}
+		return data;
+	}
+
+	/*
+	 Writes the run length symbols of the MTF values to 'symbols' and
+	 returns their number.
+	*/
+	static int runLengths(byte[] mtf, int[] symbols) {
+		int n = 0;
+		int run = 0;
+		for (int i = 0; i <= mtf.length; i++) {
+			if (i < mtf.length && mtf[i] == 0) {
+				run++;
+				continue;
+			}
+			// run in bijective base 2: digit d of run + 1, least significant first
+			if (run > 0) {
+				for (long r = run + 1; r > 1; r >>>= 1) {
+					symbols[n++] = (int) (r & 1);
+				}
+				run = 0;
+			}
+			if (i < mtf.length) {
+				symbols[n++] = (mtf[i] & 0xff) + 1;
+			}
+		}
+		return n;
+	}
+
+	/*
+	 Builds the suffix array of s[0..n) with SA-IS. Every value of s is
+	 in [0, k) and s[n - 1] is a unique smallest end marker.
+	*/
+	static void suffixArray(int[] s, int[] sa, int n, int k) {
+		if (n == 1) {
+			sa[0] = 0;
+			return;
+		}
+
+		// type of each suffix: S (true) if smaller than the next one, L otherwise
+		boolean[] t = new boolean[n];
+		t[n - 1] = true;
+		for (int i = n - 2; i >= 0; i--) {
+			t[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && t[i + 1]);
+		}
+		int[] bucket = new int[k];
+
+		// sort the LMS substrings: place them, then induce L and S suffixes
+		buckets(s, bucket, n, true);
+		Arrays.fill(sa, 0, n, -1);
+		for (int i = 1; i < n; i++) {
+			if (isLms(t, i)) {
+				sa[--bucket[s[i]]] = i;
+			}
+		}
+		induce(s, sa, t, bucket, n);
+
+		// name the LMS substrings by rank; equal substrings share a name
+		int n1 = 0;
+		for (int i = 0; i < n; i++) {
+			if (isLms(t, sa[i])) {
+				sa[n1++] = sa[i];
+			}
+		}
+		Arrays.fill(sa, n1, n, -1);
+		int name = 0;
+		int previous = -1;
+		for (int i = 0; i < n1; i++) {
+			int pos = sa[i];
+			boolean differ = false;
+			for (int d = 0; d < n; d++) {
+				if (previous == -1 || s[pos + d] != s[previous + d] || t[pos + d] != t[previous + d]) {
+					differ = true;
+					break;
+				}
+				if (d > 0 && (isLms(t, pos + d) || isLms(t, previous + d))) {
+					break;
+				}
+			}
+			if (differ) {
+				name++;
+				previous = pos;
+			}
+			sa[n1 + pos / 2] = name - 1;
+		}
+		int[] s1 = new int[n1];
+		for (int i = n1, j = 0; i < n; i++) {
+			if (sa[i] >= 0) {
+				s1[j++] = sa[i];
+			}
+		}
+
+		// sort the LMS suffixes: recursively unless every name is unique
+		int[] sa1 = new int[n1];
+		if (name < n1) {
+			suffixArray(s1, sa1, n1, name);
+		}
+		else {
+			for (int i = 0; i < n1; i++) {
+				sa1[s1[i]] = i;
+			}
+		}
+
+		// place the sorted LMS suffixes at the ends of their buckets and induce the rest
+		for (int i = 1, j = 0; i < n; i++) {
+			if (isLms(t, i)) {
+				s1[j++] = i;
+			}
+		}
+		buckets(s, bucket, n, true);
+		Arrays.fill(sa, 0, n, -1);
+		for (int i = n1 - 1; i >= 0; i--) {
+			int j = s1[sa1[i]];
+			sa[--bucket[s[j]]] = j;
+		}
+		induce(s, sa, t, bucket, n);
+	}
+
+	private static boolean isLms(boolean[] t, int i) {
+		return i > 0 && t[i] && !t[i - 1];
+	}
+
+	/*
+	 Sets bucket[c] to the start (or the end) of the suffixes starting
+	 with c.
+	*/
+	private static void buckets(int[] s, int[] bucket, int n, boolean end) {
+		Arrays.fill(bucket, 0);
+		for (int i = 0; i < n; i++) {
+			bucket[s[i]]++;
+		}
+		int sum = 0;
+		for (int c = 0; c < bucket.length; c++) {
+			sum += bucket[c];
+			bucket[c] = end ? sum : sum - bucket[c];
+		}
+	}
+
+	/*
+	 Induces the order of the L suffixes from left to right, then of
+	 the S suffixes from right to left.
+	*/
+	private static void induce(int[] s, int[] sa, boolean[] t, int[] bucket, int n) {
+		buckets(s, bucket, n, false);
+		for (int i = 0; i < n; i++) {
+			int j = sa[i] - 1;
+			if (j >= 0 && !t[j]) {
+				sa[bucket[s[j]]++] = j;
+			}
+		}
+		buckets(s, bucket, n, true);
+		for (int i = n - 1; i >= 0; i--) {
+			int j = sa[i] - 1;
+			if (j >= 0 && t[j]) {
+				sa[--bucket[s[j]]] = j;
+			}
+		}
+	}
+
+	/*
+	 java BurrowsWheeler <file>...
+	 Prints the size of each file as BWT blocks and as order-0 blocks
+	 of 900 KB.
+	*/
+	public static void main(String[] args) throws IOException {
+		int blockSize = 900 * 1000;
+		for (String file : args) {
+			byte[] data = Files.readAllBytes(Paths.get(file));
+			long plain = 0;
+			long bwt = 0;
+			long start = System.nanoTime();
+			for (int off = 0; off < data.length; off += blockSize) {
+				int n = Math.min(blockSize, data.length - off);
+				plain += BlockCodec.encodeBlock(data, off, n, DecodeTable.MAX_CODE_LENGTH).length;
+			}
+			long plainTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			boolean same = true;
+			long decodeTime = 0;
+			for (int off = 0; off < data.length; off += blockSize) {
+				int n = Math.min(blockSize, data.length - off);
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				encode(data, off, n, DecodeTable.MAX_CODE_LENGTH, new DataOutputStream(buf));
+				byte[] payload = buf.toByteArray();
+				bwt += BlockCodec.BLOCK_HEADER + payload.length;
+
+				long t = System.nanoTime();
+				same &= Arrays.equals(decode(payload, 0, payload.length, n), Arrays.copyOfRange(data, off, off + n));
+				decodeTime += System.nanoTime() - t;
+			}
+			long bwtTime = System.nanoTime() - start - decodeTime;
+
+			System.out.printf("%s: %d bytes, order-0 %d (%.1f MB/s), BWT %d (encode %.1f MB/s, decode %.1f MB/s)%s%n",
+				file, data.length, plain, data.length * 1e3 / Math.max(plainTime, 1), bwt,
+				data.length * 1e3 / Math.max(bwtTime, 1), data.length * 1e3 / Math.max(decodeTime, 1),
+				same ? "" : "  MISMATCH");
+		}
+	}
+}
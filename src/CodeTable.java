@@ -0,0 +1,368 @@
+/**
+ * 	@file	CodeTable.java
+ * 	@brief	Canonical Huffman codes.
+ *		A canonical code is fully described by the length of the
+ *		codeword of every character: codewords of the same length
+ *		are consecutive integers in character order and shorter
+ *		codewords come first. Only the lengths have to be stored
+ *		with the compressed data and the decoder rebuilds exactly
+ *		the same codewords from them.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public final class CodeTable {
+	/* Header flags for how the code lengths are packed */
+	private static final int NIBBLES = 4;
+	private static final int BYTES = 8;
+
+	/* Shortest output for which building a MultiSymbolTable pays off */
+	private static final int MULTI_SYMBOL_MIN = 1 << 14;
+
+	final int[] codes;		// codeword of each character in its lowest bits
+	final byte[] lengths;		// codeword lengths, 0 if the character does not occur
+	private final int maxLength;
+	private DecodeTable decoder;
+	private MultiSymbolTable multiDecoder;
+
+	/*
+	 Constructor for a code table made from a set of codewords.
+	*/
+	CodeTable(int[] codeArray, byte[] lengthArray) {
+		codes = codeArray;
+		lengths = lengthArray;
+
+		int max = 0;
+		for (byte l : lengths) {
+			max = Math.max(max, l);
+		}
+		maxLength = max;
+	}
+
+	/*
+	 Returns the canonical code for the given code lengths.
+	*/
+	public static CodeTable canonical(byte[] lengths) {
+		int maxLength = 0;
+		for (byte l : lengths) {
+			maxLength = Math.max(maxLength, l);
+		}
+		if (maxLength > DecodeTable.MAX_CODE_LENGTH) {
+			throw new IllegalArgumentException("Code length " + maxLength + " exceeds " + DecodeTable.MAX_CODE_LENGTH);
+		}
+
+		// number of codewords of each length
+		int[] count = new int[maxLength + 1];
+		for (byte l : lengths) {
+			count[l]++;
+		}
+		count[0] = 0;
+
+		// first codeword of each length
+		long[] next = new long[maxLength + 1];
+		long code = 0;
+		for (int l = 1; l <= maxLength; l++) {
+			code = (code + count[l - 1]) << 1;
+			next[l] = code;
+		}
+
+		int[] codes = new int[lengths.length];
+		for (int s = 0; s < lengths.length; s++) {
+			if (lengths[s] > 0) {
+				codes[s] = (int) next[lengths[s]]++;
+			}
+		}
+
+		return new CodeTable(codes, lengths);
+	}
+
+	/*
+	 Returns the lookup table decoder for this code.
+	 It is built the first time it is needed (by one thread only).
+	*/
+	public synchronized DecodeTable decodeTable() {
+		if (decoder == null) {
+			decoder = new DecodeTable(codes, lengths);
+		}
+		return decoder;
+	}
+
+	/*
+	 Returns the decoder which decodes several characters per lookup.
+	 It is built the first time it is needed.
+	*/
+	public synchronized MultiSymbolTable multiSymbolTable() {
+		if (multiDecoder == null) {
+			multiDecoder = new MultiSymbolTable(codes, lengths, decodeTable());
+		}
+		return multiDecoder;
+	}
+
+	/*
+	 Decodes 'length' characters into dst starting at 'offset', using
+	 the multi-symbol table unless the output is too short for it to
+	 pay for its construction.
+	*/
+	public void decode(BitReader in, byte[] dst, int offset, int length) throws IOException {
+		if (length >= MULTI_SYMBOL_MIN) {
+			multiSymbolTable().decode(in, dst, offset, length);
+		}
+		else {
+			decodeTable().decode(in, dst, offset, length);
+		}
+	}
+
+	/*
+	 Decodes 'count' characters and writes them to out.
+	*/
+	public void decode(BitReader in, OutputStream out, long count) throws IOException {
+		if (count >= MULTI_SYMBOL_MIN) {
+			multiSymbolTable().decode(in, out, count);
+		}
+		else {
+			decodeTable().decode(in, out, count);
+		}
+	}
+
+	/*
+	 Writes the codeword of each byte of src[offset..offset+length).
+	 When no codeword is longer than 16 bits, two codewords are joined
+	 and written with one call.
+	*/
+	public void encode(byte[] src, int offset, int length, BitWriter out) throws IOException {
+		int end = offset + length;
+		int i = offset;
+		if (maxLength <= 16) {
+			for (; i + 2 <= end; i += 2) {
+				int c0 = src[i] & 0xff;
+				int c1 = src[i + 1] & 0xff;
+				out.write((codes[c0] << lengths[c1]) | codes[c1], lengths[c0] + lengths[c1]);
+			}
+		}
+		for (; i < end; i++) {
+			int c = src[i] & 0xff;
+			out.write(codes[c], lengths[c]);
+		}
+	}
+
+	/*
+	 Writes the codeword of each symbol of symbols[offset..offset+length),
+	 for alphabets larger than a byte.
+	*/
+	public void encode(int[] symbols, int offset, int length, BitWriter out) throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			int s = symbols[i];
+			out.write(codes[s], lengths[s]);
+		}
+	}
+
+	/*
+	 Writes the codeword of each 16-bit symbol (big endian byte pair)
+	 of src[offset..offset+2*pairs).
+	*/
+	public void encodePairs(byte[] src, int offset, int pairs, BitWriter out) throws IOException {
+		int end = offset + 2 * pairs;
+		for (int i = offset; i < end; i += 2) {
+			int s = ((src[i] & 0xff) << 8) | (src[i + 1] & 0xff);
+			out.write(codes[s], lengths[s]);
+		}
+	}
+
+	/*
+	 Writes the codeword of each remaining byte of the buffer.
+	*/
+	public void encode(ByteBuffer src, BitWriter out) throws IOException {
+		if (src.hasArray()) {
+			encode(src.array(), src.arrayOffset() + src.position(), src.remaining(), out);
+			src.position(src.limit());
+			return;
+		}
+
+		byte[] chunk = new byte[Math.min(1 << 16, src.remaining())];
+		while (src.hasRemaining()) {
+			int n = Math.min(chunk.length, src.remaining());
+			src.get(chunk, 0, n);
+			encode(chunk, 0, n, out);
+		}
+	}
+
+	/*
+	 Returns the length of the longest codeword.
+	*/
+	public int maxLength() {
+		return maxLength;
+	}
+
+	/*
+	 Returns the number of bytes written by writeLengths().
+	*/
+	public int lengthsSize() {
+		int used = 0;
+		for (byte len : lengths) {
+			if (len > 0) {
+				used++;
+			}
+		}
+		return 1 + (lengths.length + 7) / 8 + ((maxLength() <= 15) ? (used + 1) / 2 : used);
+	}
+
+	/*
+	 Returns the number of bytes the codewords of a file with the given
+	 frequency table take, rounded up to whole bytes.
+	*/
+	public long encodedSize(long[] freq) {
+		long bits = 0;
+		for (int c = 0; c < freq.length; c++) {
+			bits += freq[c] * lengths[c];
+		}
+		return (bits + 7) / 8;
+	}
+
+	/*
+	 Writes the code lengths in the format:
+	 <packing: 4 or 8><bitmap of characters that occur><lengths>
+	 The bitmap has one bit per character of the alphabet. Lengths
+	 of the characters that occur follow in character order, two
+	 per byte if every length fits in 4 bits and one per byte
+	 otherwise. For 256 characters this is at most 161 bytes.
+	*/
+	public void writeLengths(DataOutput out) throws IOException {
+		int packing = (maxLength() <= 15) ? NIBBLES : BYTES;
+		out.writeByte(packing);
+
+		byte[] bitmap = new byte[(lengths.length + 7) / 8];
+		for (int s = 0; s < lengths.length; s++) {
+			if (lengths[s] > 0) {
+				bitmap[s >>> 3] |= (byte) (0x80 >>> (s & 7));
+			}
+		}
+		out.write(bitmap);
+
+		int pending = -1;
+		for (int s = 0; s < lengths.length; s++) {
+			if (lengths[s] == 0) {
+				continue;
+			}
+			if (packing == BYTES) {
+				out.writeByte(lengths[s]);
+			}
+			else if (pending < 0) {
+				pending = lengths[s];
+			}
+			else {
+				out.writeByte((pending << 4) | lengths[s]);
+				pending = -1;
+			}
+		}
+		if (pending >= 0) {
+			out.writeByte(pending << 4);
+		}
+	}
+
+	/*
+	 Writes the code lengths of a large alphabet where most symbols do
+	 not occur, in the format:
+	 <number of symbols that occur><(gap, length) per symbol>
+	 The gap from the previous symbol is written 7 bits per byte, with
+	 the high bit set on all but the last byte.
+	*/
+	public void writeSparseLengths(DataOutput out) throws IOException {
+		int used = 0;
+		for (byte l : lengths) {
+			if (l > 0) {
+				used++;
+			}
+		}
+		out.writeInt(used);
+
+		int previous = -1;
+		for (int s = 0; s < lengths.length; s++) {
+			if (lengths[s] == 0) {
+				continue;
+			}
+			int gap = s - previous - 1;
+			while (gap >= 0x80) {
+				out.writeByte(0x80 | (gap & 0x7f));
+				gap >>>= 7;
+			}
+			out.writeByte(gap);
+			out.writeByte(lengths[s]);
+			previous = s;
+		}
+	}
+
+	/*
+	 Reads code lengths written by writeSparseLengths() for an alphabet
+	 of the given size.
+	*/
+	public static byte[] readSparseLengths(DataInput in, int alphabetSize) throws IOException {
+		int used = in.readInt();
+		if (used < 0 || used > alphabetSize) {
+			throw new IOException("Corrupt code length header");
+		}
+
+		byte[] lengths = new byte[alphabetSize];
+		int s = -1;
+		for (int i = 0; i < used; i++) {
+			int gap = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readUnsignedByte();
+				gap |= (b & 0x7f) << shift;
+				if (b < 0x80 || shift > 14) {
+					break;
+				}
+			}
+			s += gap + 1;
+			int l = in.readByte();
+			if (s >= alphabetSize || l < 1 || l > DecodeTable.MAX_CODE_LENGTH) {
+				throw new IOException("Corrupt code length header");
+			}
+			lengths[s] = (byte) l;
+		}
+		return lengths;
+	}
+
+	/*
+	 Reads code lengths written by writeLengths() for an alphabet
+	 of the given size.
+	*/
+	public static byte[] readLengths(DataInput in, int alphabetSize) throws IOException {
+		int packing = in.readUnsignedByte();
+		if (packing != NIBBLES && packing != BYTES) {
+			throw new IOException("Corrupt code length header");
+		}
+
+		byte[] bitmap = new byte[(alphabetSize + 7) / 8];
+		in.readFully(bitmap);
+
+		byte[] lengths = new byte[alphabetSize];
+		int pending = -1;
+		for (int s = 0; s < alphabetSize; s++) {
+			if ((bitmap[s >>> 3] & (0x80 >>> (s & 7))) == 0) {
+				continue;
+			}
+			if (packing == BYTES) {
+				lengths[s] = in.readByte();
+			}
+			else if (pending < 0) {
+				pending = in.readUnsignedByte();
+				lengths[s] = (byte) (pending >>> 4);
+			}
+			else {
+				lengths[s] = (byte) (pending & 0xf);
+				pending = -1;
+			}
+		}
+
+		for (byte l : lengths) {
+			if (l < 0 || l > DecodeTable.MAX_CODE_LENGTH) {
+				throw new IOException("Corrupt code length header");
+			}
+		}
+		return lengths;
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * 	@file	CompressionReport.java
+ * 	@brief	Analysis of how well a file would compress, worked out
+ *		from its histogram and Huffman tree without writing any
+ *		output. It separates the two reasons a file compresses
+ *		poorly: a high Shannon entropy (the data itself, as with
+ *		ur.jpg, whose bytes are close to 8 bits of entropy each)
+ *		and codec overhead (the frequency file or header, the
+ *		padding, and the redundancy of whole-bit codewords over
+ *		the entropy).
+ *
+ *		Sizes are predicted for the formats of encode() with a
+ *		frequency file and of the canonical encode(inputFile,
+ *		outputFile), which stores the file when coding would not
+ *		pay (see HuffmanCompress.worthCoding()).
+ */
+
+import java.io.IOException;
+
+public final class CompressionReport {
+	private final long[] freq;
+	private final long count;
+	private final int distinct;
+	private final CodeTable table;
+	private final CodeTable canonical;
+	private final double entropy;
+	private final long codedBits;
+	private final long freqFileSize;
+
+	/*
+	 Constructor for the report of a file with the given frequency table.
+	*/
+	public CompressionReport(long[] frequencies) {
+		freq = frequencies.clone();
+		count = HuffmanCompress.total(freq);
+		distinct = HuffmanCompress.distinct(freq);
+
+		table = HuffmanCompress.createCodewordTable(HuffmanCompress.buildTree(freq), freq.length);
+		canonical = CodeTable.canonical(HuffmanCompress.codeLengths(freq));
+
+		double h = 0;
+		long bits = 0;
+		long freqFile = 0;
+		int newline = System.lineSeparator().length();
+		for (int c = 0; c < freq.length; c++) {
+			if (freq[c] > 0) {
+				double p = (double) freq[c] / count;
+				h -= p * Math.log(p) / Math.log(2);
+				bits += freq[c] * table.lengths[c];
+				freqFile += HuffmanCompress.charToBinary((char) c).length() + 1 + Long.toString(freq[c]).length() + newline;
+			}
+		}
+		entropy = h;
+		codedBits = bits;
+		freqFileSize = freqFile;
+	}
+
+	/*
+	 Returns the report of a file. The file is read once, mapped when
+	 large, and nothing is written.
+	*/
+	public static CompressionReport analyze(String inputFile) throws IOException {
+		try (MappedInput input = new MappedInput(inputFile)) {
+			return new CompressionReport(input.histogram());
+		}
+	}
+
+	/*
+	 Number of characters in the file.
+	*/
+	public long size() {
+		return count;
+	}
+
+	/*
+	 Number of distinct characters.
+	*/
+	public int distinct() {
+		return distinct;
+	}
+
+	/*
+	 Shannon entropy in bits per character: the least any code which
+	 codes each character on its own can average.
+	*/
+	public double entropy() {
+		return entropy;
+	}
+
+	/*
+	 Bits per character of the Huffman code.
+	*/
+	public double bitsPerSymbol() {
+		return (count > 0) ? (double) codedBits / count : 0;
+	}
+
+	/*
+	 Bits per character the Huffman code spends over the entropy,
+	 because codewords are whole bits (less than 1).
+	*/
+	public double redundancy() {
+		return bitsPerSymbol() - entropy;
+	}
+
+	/*
+	 Longest codeword in bits.
+	*/
+	public int maxCodeLength() {
+		return table.maxLength();
+	}
+
+	/*
+	 Returns the number of characters with a codeword of each length:
+	 entry l is the number with an l bit codeword.
+	*/
+	public long[] codeLengthHistogram() {
+		long[] histogram = new long[maxCodeLength() + 1];
+		for (int c = 0; c < freq.length; c++) {
+			if (freq[c] > 0) {
+				histogram[table.lengths[c]]++;
+			}
+		}
+		return histogram;
+	}
+
+	/*
+	 Bytes of the entropy bound: size() * entropy() / 8.
+	*/
+	public long entropyBytes() {
+		return (long) Math.ceil(count * entropy / 8);
+	}
+
+	/*
+	 Bytes of the codewords, padded to a whole byte.
+	*/
+	public long payloadBytes() {
+		return (codedBits + 7) / 8;
+	}
+
+	/*
+	 Bytes of the frequency file written by encode(input, output, freqFile).
+	*/
+	public long freqFileBytes() {
+		return freqFileSize;
+	}
+
+	/*
+	 Bytes of the header of the canonical format: magic, character
+	 count and code lengths.
+	*/
+	public long headerBytes() {
+		return 12 + canonical.lengthsSize();
+	}
+
+	/*
+	 Bytes of the canonical format, which stores the file as is when
+	 coding does not pay.
+	*/
+	public long canonicalBytes() {
+		return worthCompressing() ? headerBytes() + canonical.encodedSize(freq) : 4 + count;
+	}
+
+	/*
+	 True if the canonical format codes the file rather than storing
+	 it. This is the cheap decision for routing: it needs only the
+	 histogram and the code lengths.
+	*/
+	public boolean worthCompressing() {
+		return HuffmanCompress.worthCoding(count, canonical, freq);
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("characters            %d (%d distinct)%n", count, distinct));
+		s.append(String.format("entropy               %.4f bits/char (%d bytes)%n", entropy, entropyBytes()));
+		s.append(String.format("huffman               %.4f bits/char (%d bytes), redundancy %.4f%n",
+			bitsPerSymbol(), payloadBytes(), redundancy()));
+		s.append(String.format("code length           max %d, average %.4f%n", maxCodeLength(), bitsPerSymbol()));
+		s.append(String.format("frequency file        %d bytes (%d + %d = %.1f%% of the original)%n",
+			freqFileBytes(), payloadBytes(), freqFileBytes(), 100.0 * (payloadBytes() + freqFileBytes()) / Math.max(count, 1)));
+		s.append(String.format("canonical header      %d bytes (%d total = %.1f%% of the original%s)%n",
+			headerBytes(), canonicalBytes(), 100.0 * canonicalBytes() / Math.max(count, 1), worthCompressing() ? "" : ", stored"));
+		s.append("code length histogram");
+		long[] histogram = codeLengthHistogram();
+		for (int l = 0; l < histogram.length; l++) {
+			if (histogram[l] > 0) {
+				s.append(String.format("  %d:%d", l, histogram[l]));
+			}
+		}
+		return s.append(String.format("%n")).toString();
+	}
+
+	/*
+	 java CompressionReport <file>...
+	 Prints the report of each file.
+	*/
+	public static void main(String[] args) throws IOException {
+		for (String file : args) {
+			System.out.println(file + ":");
+			System.out.print(analyze(file));
+		}
+	}
+}
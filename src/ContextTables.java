@@ -0,0 +1,492 @@
+/**
+ * 	@file	ContextTables.java
+ * 	@brief	Order-1 Huffman coding: the code used for a character
+ *		depends on the character before it (its context), so
+ *		after 'q' the code for 'u' can be a single bit.
+ *
+ *		One table per context would cost about 100 bytes of code
+ *		lengths each, so contexts with similar statistics share a
+ *		table. Starting from one cluster per context, the two
+ *		clusters whose merge costs the fewest bits are merged until
+ *		one is left, and the number of clusters with the smallest
+ *		total (estimated bits + code lengths) is kept. If that is a
+ *		single cluster, order-0 coding is just as good and build()
+ *		returns null.
+ *
+ *		Decoding keeps the table lookups of MultiSymbolTable: each
+ *		cluster has a TABLE_BITS table whose entries hold up to
+ *		MAX_SYMBOLS characters, the second one decoded with the
+ *		table of the first one's context and so on.
+ *
+ *		Header: <clusters - 1><cluster of each context><code lengths>*
+ *		The first character of a block has context 0.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class ContextTables {
+	/* Contexts are the previous character */
+	public static final int CONTEXTS = HuffmanCompress.ALPHABET_SIZE;
+
+	/* Most tables in a block */
+	public static final int MAX_CLUSTERS = 32;
+
+	/* Clustering starts from the most frequent contexts, the rest as one cluster */
+	private static final int SEED_CLUSTERS = 64;
+
+	private static final int TABLE_BITS = MultiSymbolTable.TABLE_BITS;
+	private static final int MAX_SYMBOLS = MultiSymbolTable.MAX_SYMBOLS;
+	private static final VarHandle INT =
+		MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/* x * log2(x) for small counts */
+	private static final double[] XLOGX = new double[1 << 12];
+	static {
+		for (int x = 1; x < XLOGX.length; x++) {
+			XLOGX[x] = x * Math.log(x) / Math.log(2);
+		}
+	}
+
+	final byte[] contextMap;	// cluster of each context
+	final CodeTable[] tables;	// code of each cluster
+	private DecodeTable[] decoders;	// decode table of each context
+	private int[][] multi;		// multi-symbol table of each context
+
+	private ContextTables(byte[] map, CodeTable[] clusterTables) {
+		contextMap = map;
+		tables = clusterTables;
+	}
+
+	/*
+	 Returns the order-1 tables for src[offset..offset+length) with
+	 codewords of at most maxLength bits, or null if they are not
+	 expected to beat a single order-0 table.
+	*/
+	public static ContextTables build(byte[] src, int offset, int length, int maxLength) {
+		long[][] freq = new long[CONTEXTS][CONTEXTS];
+		int prev = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int c = src[i] & 0xff;
+			freq[prev][c]++;
+			prev = c;
+		}
+
+		byte[] map = cluster(freq);
+		if (map == null) {
+			return null;
+		}
+
+		int clusters = 0;
+		for (byte m : map) {
+			clusters = Math.max(clusters, m + 1);
+		}
+		long[][] clusterFreq = new long[clusters][CONTEXTS];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			for (int c = 0; c < CONTEXTS; c++) {
+				clusterFreq[map[ctx]][c] += freq[ctx][c];
+			}
+		}
+
+		CodeTable[] tables = new CodeTable[clusters];
+		for (int k = 0; k < clusters; k++) {
+			tables[k] = CodeTable.canonical(HuffmanCompress.codeLengths(clusterFreq[k], maxLength));
+		}
+		return new ContextTables(map, tables);
+	}
+
+	/*
+	 Greedy clustering of the contexts. Returns the cluster of each
+	 context, or null if one cluster is best.
+	*/
+	private static byte[] cluster(long[][] freq) {
+		long[][] counts = new long[CONTEXTS][];
+		int[][] symbols = new int[CONTEXTS][];
+		long[] totals = new long[CONTEXTS];
+		double[] cost = new double[CONTEXTS];
+		boolean[] active = new boolean[CONTEXTS];
+		boolean[] occurs = new boolean[CONTEXTS];
+		Integer[] order = new Integer[CONTEXTS];
+		int clusters = 0;
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			counts[ctx] = freq[ctx].clone();
+			for (long f : counts[ctx]) {
+				totals[ctx] += f;
+			}
+			occurs[ctx] = active[ctx] = totals[ctx] > 0;
+			order[ctx] = ctx;
+			if (occurs[ctx]) {
+				clusters++;
+			}
+		}
+		if (clusters <= 1) {
+			return null;
+		}
+		int[] mergeA = new int[clusters - 1];
+		int[] mergeB = new int[clusters - 1];
+		int merges = 0;
+
+		// the SEED_CLUSTERS - 1 most frequent contexts start as clusters of
+		// their own and the others as one cluster, which keeps the
+		// clustering fast when all 256 contexts occur
+		Arrays.sort(order, (x, y) -> Long.compare(totals[y], totals[x]));
+		for (int r = SEED_CLUSTERS; r < clusters; r++) {
+			int a = order[SEED_CLUSTERS - 1];
+			int b = order[r];
+			for (int c = 0; c < CONTEXTS; c++) {
+				counts[a][c] += counts[b][c];
+			}
+			totals[a] += totals[b];
+			active[b] = false;
+			mergeA[merges] = a;
+			mergeB[merges] = b;
+			merges++;
+		}
+		clusters -= merges;
+
+		double total = 0;
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			if (active[ctx]) {
+				symbols[ctx] = symbols(counts[ctx]);
+				cost[ctx] = cost(counts[ctx], totals[ctx], symbols[ctx], null, null);
+				total += cost[ctx];
+			}
+		}
+
+		double[][] delta = new double[CONTEXTS][CONTEXTS];
+		for (int a = 0; a < CONTEXTS; a++) {
+			for (int b = a + 1; b < CONTEXTS; b++) {
+				if (active[a] && active[b]) {
+					delta[a][b] = mergedCost(counts, totals, symbols, a, b) - cost[a] - cost[b];
+				}
+			}
+		}
+
+		// merge down to one cluster, remembering the best point; more
+		// than one cluster also needs the context map
+		int best = -1;
+		double bestTotal = Double.MAX_VALUE;
+		while (clusters > 1) {
+			if (clusters <= MAX_CLUSTERS && total + 8 * (1 + CONTEXTS) < bestTotal) {
+				bestTotal = total + 8 * (1 + CONTEXTS);
+				best = merges;
+			}
+
+			int a = -1;
+			int b = -1;
+			for (int i = 0; i < CONTEXTS; i++) {
+				if (!active[i]) {
+					continue;
+				}
+				for (int j = i + 1; j < CONTEXTS; j++) {
+					if (active[j] && (a < 0 || delta[i][j] < delta[a][b])) {
+						a = i;
+						b = j;
+					}
+				}
+			}
+
+			// merge b into a
+			total += delta[a][b];
+			cost[a] += cost[b] + delta[a][b];
+			for (int c = 0; c < CONTEXTS; c++) {
+				counts[a][c] += counts[b][c];
+			}
+			totals[a] += totals[b];
+			symbols[a] = symbols(counts[a]);
+			active[b] = false;
+			clusters--;
+			mergeA[merges] = a;
+			mergeB[merges] = b;
+			merges++;
+
+			for (int x = 0; x < CONTEXTS; x++) {
+				if (active[x] && x != a) {
+					double d = mergedCost(counts, totals, symbols, Math.min(a, x), Math.max(a, x)) - cost[a] - cost[x];
+					delta[Math.min(a, x)][Math.max(a, x)] = d;
+				}
+			}
+		}
+		if (total <= bestTotal) {
+			return null;	// a single table is at least as small
+		}
+
+		// replay the merges up to the best point
+		int[] owner = new int[CONTEXTS];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			owner[ctx] = ctx;
+		}
+		for (int m = 0; m < best; m++) {
+			for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+				if (owner[ctx] == mergeB[m]) {
+					owner[ctx] = mergeA[m];
+				}
+			}
+		}
+
+		byte[] map = new byte[CONTEXTS];
+		int[] number = new int[CONTEXTS];
+		Arrays.fill(number, -1);
+		int next = 0;
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			if (occurs[ctx]) {
+				if (number[owner[ctx]] < 0) {
+					number[owner[ctx]] = next++;
+				}
+				map[ctx] = (byte) number[owner[ctx]];
+			}
+		}
+		return map;
+	}
+
+	/*
+	 Estimated size in bits of the cluster made of clusters a and b.
+	*/
+	private static double mergedCost(long[][] counts, long[] totals, int[][] symbols, int a, int b) {
+		return cost(counts[a], totals[a] + totals[b], symbols[a], counts[b], symbols[b]);
+	}
+
+	/*
+	 Estimated size in bits of a cluster with the counts of 'a' (plus
+	 those of 'b' if not null): the entropy of the characters plus their
+	 code lengths in the header. symA and symB list the characters that
+	 occur in a and b in increasing order.
+	*/
+	private static double cost(long[] a, long total, int[] symA, long[] b, int[] symB) {
+		double bits = xlogx(total);
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		int lenA = symA.length;
+		int lenB = (symB == null) ? 0 : symB.length;
+		while (i < lenA || j < lenB) {
+			int s;
+			if (j == lenB || (i < lenA && symA[i] < symB[j])) {
+				s = symA[i++];
+			}
+			else if (i == lenA || symB[j] < symA[i]) {
+				s = symB[j++];
+			}
+			else {
+				s = symA[i++];
+				j++;
+			}
+			bits -= xlogx(a[s] + ((b == null) ? 0 : b[s]));
+			n++;
+		}
+
+		// packing byte, bitmap and one nibble per character
+		return bits + 8 * (1 + CONTEXTS / 8) + 4 * n;
+	}
+
+	private static double xlogx(long x) {
+		return (x < XLOGX.length) ? XLOGX[(int) x] : x * Math.log(x) / Math.log(2);
+	}
+
+	private static int[] symbols(long[] counts) {
+		int n = 0;
+		for (long f : counts) {
+			if (f > 0) {
+				n++;
+			}
+		}
+		int[] symbols = new int[n];
+		n = 0;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] > 0) {
+				symbols[n++] = c;
+			}
+		}
+		return symbols;
+	}
+
+	/*
+	 Writes the header: number of clusters, context map, code lengths.
+	*/
+	public void writeHeader(DataOutput out) throws IOException {
+		out.writeByte(tables.length - 1);
+		out.write(contextMap);
+		for (CodeTable table : tables) {
+			table.writeLengths(out);
+		}
+	}
+
+	/*
+	 Reads a header written by writeHeader().
+	*/
+	public static ContextTables readHeader(DataInput in) throws IOException {
+		int clusters = in.readUnsignedByte() + 1;
+		byte[] map = new byte[CONTEXTS];
+		in.readFully(map);
+		for (byte m : map) {
+			if ((m & 0xff) >= clusters) {
+				throw new IOException("Corrupt context map");
+			}
+		}
+
+		CodeTable[] tables = new CodeTable[clusters];
+		for (int k = 0; k < clusters; k++) {
+			tables[k] = CodeTable.canonical(CodeTable.readLengths(in, HuffmanCompress.ALPHABET_SIZE));
+		}
+		return new ContextTables(map, tables);
+	}
+
+	/*
+	 Writes the codeword of each byte of src[offset..offset+length)
+	 using the table of the byte before it.
+	*/
+	public void encode(byte[] src, int offset, int length, BitWriter out) throws IOException {
+		// codes and lengths indexed by context
+		int[][] codes = new int[CONTEXTS][];
+		byte[][] lengths = new byte[CONTEXTS][];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			CodeTable table = tables[contextMap[ctx]];
+			codes[ctx] = table.codes;
+			lengths[ctx] = table.lengths;
+		}
+
+		int prev = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int c = src[i] & 0xff;
+			out.write(codes[prev][c], lengths[prev][c]);
+			prev = c;
+		}
+	}
+
+	/*
+	 Decodes 'length' characters into dst starting at 'offset'.
+	*/
+	public void decode(BitReader in, byte[] dst, int offset, int length) throws IOException {
+		buildDecoders();
+
+		int i = offset;
+		int end = offset + length;
+		int prev = 0;
+
+		// an entry is stored as a 4 byte write, so stop 4 bytes early
+		while (end - i >= 4) {
+			in.refill();
+			for (int k = 0; k < 4 && end - i >= 4; k++) {
+				int e = multi[prev][in.peek(TABLE_BITS)];
+				int count = (e >>> 6) & 3;
+				if (count == 0) {
+					prev = decoders[prev].decodeSymbol(in);
+					dst[i++] = (byte) prev;
+					break;
+				}
+				INT.set(dst, i, e >>> 8);
+				in.consume(e & 0x3f);
+				i += count;
+				prev = (e >>> (8 * count)) & 0xff;
+			}
+		}
+
+		while (i < end) {
+			prev = decoders[prev].decodeSymbol(in);
+			dst[i++] = (byte) prev;
+		}
+	}
+
+	/*
+	 Builds the decode table of every context and the multi-symbol
+	 table of every cluster. An entry of cluster k's table decodes the
+	 first character with table k, and each following one with the
+	 table of the context made by the character before it.
+	*/
+	private void buildDecoders() {
+		if (decoders != null) {
+			return;
+		}
+
+		DecodeTable[] clusterDecoders = new DecodeTable[tables.length];
+		int[][] first = new int[tables.length][1 << TABLE_BITS];
+		for (int k = 0; k < tables.length; k++) {
+			clusterDecoders[k] = tables[k].decodeTable();
+			int[] codes = tables[k].codes;
+			byte[] lengths = tables[k].lengths;
+			for (int s = 0; s < lengths.length; s++) {
+				int len = lengths[s];
+				if (len > 0 && len <= TABLE_BITS) {
+					int start = codes[s] << (TABLE_BITS - len);
+					int end = start + (1 << (TABLE_BITS - len));
+					for (int j = start; j < end; j++) {
+						first[k][j] = (s << 8) | len;
+					}
+				}
+			}
+		}
+
+		int mask = (1 << TABLE_BITS) - 1;
+		int[][] clusterMulti = new int[tables.length][1 << TABLE_BITS];
+		for (int k = 0; k < tables.length; k++) {
+			for (int w = 0; w <= mask; w++) {
+				int cluster = k;
+				int used = 0;
+				int count = 0;
+				int chars = 0;
+				while (count < MAX_SYMBOLS) {
+					int e = first[cluster][(w << used) & mask];
+					int len = e & 0xff;
+					if (len == 0 || used + len > TABLE_BITS) {
+						break;
+					}
+					chars |= (e >>> 8) << (8 * count);
+					used += len;
+					count++;
+					cluster = contextMap[e >>> 8];
+				}
+				clusterMulti[k][w] = (chars << 8) | (count << 6) | used;
+			}
+		}
+
+		DecodeTable[] byContext = new DecodeTable[CONTEXTS];
+		multi = new int[CONTEXTS][];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			byContext[ctx] = clusterDecoders[contextMap[ctx]];
+			multi[ctx] = clusterMulti[contextMap[ctx]];
+		}
+		decoders = byContext;
+	}
+
+	/*
+	 Compares order-1 with order-0 blocks on the file named by the
+	 first argument (alice30.txt by default): compressed size, encode
+	 and decode speed.
+	*/
+	public static void main(String[] args) throws IOException {
+		byte[] data = Files.readAllBytes(Paths.get(args.length > 0 ? args[0] : "alice30.txt"));
+		int blockSize = Math.max(BlockCodec.MIN_BLOCK_SIZE, Math.min(data.length, BlockCodec.DEFAULT_BLOCK_SIZE));
+
+		for (int run = 0; run < 5; run++) {
+			System.out.printf("run %d%n", run + 1);
+			for (boolean order1 : new boolean[] { false, true }) {
+				long size = 0;
+				long encode = 0;
+				long decode = 0;
+				for (int off = 0; off < data.length; off += blockSize) {
+					int n = Math.min(blockSize, data.length - off);
+					long start = System.nanoTime();
+					byte[] block = BlockCodec.encodeBlock(data, off, n, BlockCodec.Options.DEFAULT.withOrder1(order1));
+					encode += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					byte[] decoded = BlockCodec.decodePayload(block[0], n, block, BlockCodec.BLOCK_HEADER, block.length - BlockCodec.BLOCK_HEADER);
+					decode += System.nanoTime() - start;
+					if (!Arrays.equals(decoded, 0, n, data, off, off + n)) {
+						throw new IllegalStateException("Round trip failed");
+					}
+					size += block.length;
+				}
+				System.out.printf("  order-%d  size %9d (%5.2f bits/char)  encode %7.1f MB/s  decode %7.1f MB/s%n",
+					order1 ? 1 : 0, size, 8.0 * size / data.length, data.length / (encode / 1e3), data.length / (decode / 1e3));
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * 	@file	DecodeTable.java
+ * 	@brief	Lookup table decoder for Huffman codes.
+ *		Instead of walking down the tree one bit at a time, the
+ *		decoder peeks ROOT_BITS bits and finds the character and
+ *		the length of its code with a single array access. Codes
+ *		longer than ROOT_BITS point to a secondary table which is
+ *		indexed by the bits following the first ROOT_BITS. If no
+ *		code is longer than SINGLE_LOOKUP_BITS the first table covers
+ *		every code and there are no secondary tables.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public final class DecodeTable {
+	/* Longest code that can be decoded (codes are stored in an int) */
+	public static final int MAX_CODE_LENGTH = 32;
+
+	/* Number of bits resolved by the first lookup */
+	public static final int ROOT_BITS = 11;
+
+	/* Codes up to this long get a root table covering all of them */
+	public static final int SINGLE_LOOKUP_BITS = 12;
+
+	private static final int CHUNK = 1 << 16;
+	private static final int LINK = 0x80000000;
+
+	/*
+	 Table entries.
+	 Leaf:	(symbol << 8) | number of bits used in this table.
+	 Link:	LINK | (offset of secondary table << 8) | its index bits.
+	*/
+	private int[] table;
+	private int size;
+	private final int rootBits;
+	private final int maxLength;
+	private final int[] codes;
+	private final byte[] lengths;
+
+	/*
+	 Constructor for the decode table. codes[s] holds the code of
+	 symbol s in its lowest lengths[s] bits. Symbols which do not
+	 occur have length 0.
+	*/
+	public DecodeTable(int[] codeArray, byte[] lengthArray) {
+		codes = codeArray;
+		lengths = lengthArray;
+
+		int max = 0;
+		int n = 0;
+		for (int s = 0; s < lengths.length; s++) {
+			max = Math.max(max, lengths[s]);
+		}
+		maxLength = max;
+		if (maxLength > MAX_CODE_LENGTH) {
+			throw new IllegalArgumentException("Code length " + maxLength + " exceeds " + MAX_CODE_LENGTH);
+		}
+
+		int[] symbols = new int[lengths.length];
+		for (int s = 0; s < lengths.length; s++) {
+			if (lengths[s] > 0) {
+				symbols[n++] = s;
+			}
+		}
+
+		rootBits = (maxLength <= SINGLE_LOOKUP_BITS) ? Math.max(1, maxLength) : ROOT_BITS;
+		table = new int[1 << rootBits];
+		size = table.length;
+		fill(0, rootBits, 0, symbols, 0, n);
+	}
+
+	/*
+	 Decodes and returns the next symbol.
+	*/
+	public int decodeSymbol(BitReader in) throws IOException {
+		in.refill();
+
+		int bits = rootBits;
+		int e = table[in.peek(bits)];
+		while (e < 0) {
+			in.consume(bits);
+			bits = e & 0xff;
+			e = table[((e >>> 8) & 0x7fffff) + in.peek(bits)];
+		}
+		in.consume(e & 0xff);
+
+		return e >>> 8;
+	}
+
+	/*
+	 Decodes the symbol at the start of 'window', which must hold at
+	 least MAX_CODE_LENGTH valid bits, left aligned. Returns
+	 (symbol << 8) | length of its code, for decoders which keep the
+	 bits in their own variables instead of a BitReader.
+	*/
+	int lookup(long window) {
+		int used = 0;
+		int bits = rootBits;
+		int e = table[(int) (window >>> (64 - bits))];
+		while (e < 0) {
+			used += bits;
+			bits = e & 0xff;
+			e = table[((e >>> 8) & 0x7fffff) + (int) ((window << used) >>> (64 - bits))];
+		}
+		return (e & ~0xff) | (used + (e & 0xff));
+	}
+
+	/*
+	 Decodes 'pairs' 16-bit symbols into dst starting at 'offset', high
+	 byte first. One refill is enough for 57 / (longest code) symbols,
+	 so most symbols are decoded without one.
+	*/
+	public void decodePairs(BitReader in, byte[] dst, int offset, int pairs) throws IOException {
+		int perRefill = 57 / Math.max(1, maxLength);
+		int i = offset;
+		int end = offset + 2 * pairs;
+		while (i < end) {
+			in.refill();
+			for (int k = 0; k < perRefill && i < end; k++, i += 2) {
+				int bits = rootBits;
+				int e = table[in.peek(bits)];
+				while (e < 0) {
+					in.consume(bits);
+					bits = e & 0xff;
+					e = table[((e >>> 8) & 0x7fffff) + in.peek(bits)];
+				}
+				in.consume(e & 0xff);
+				dst[i] = (byte) (e >>> 16);
+				dst[i + 1] = (byte) (e >>> 8);
+			}
+		}
+	}
+
+	/*
+	 Decodes 'length' byte symbols into dst starting at 'offset'.
+	*/
+	public void decode(BitReader in, byte[] dst, int offset, int length) throws IOException {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			dst[i] = (byte) decodeSymbol(in);
+		}
+	}
+
+	/*
+	 Decodes 'count' byte symbols and writes them to out.
+	*/
+	public void decode(BitReader in, OutputStream out, long count) throws IOException {
+		byte[] buf = new byte[(int) Math.min(CHUNK, Math.max(count, 1))];
+		while (count > 0) {
+			int n = (int) Math.min(count, buf.length);
+			decode(in, buf, 0, n);
+			out.write(buf, 0, n);
+			count -= n;
+		}
+	}
+
+	/*
+	 Fills the table of 2^bits entries at 'offset' for the symbols
+	 syms[from..to), whose codes all start with the same 'consumed'
+	 bits. Codes which do not fit in this table are grouped by their
+	 next 'bits' bits, and each group gets its own secondary table.
+	*/
+	private void fill(int offset, int bits, int consumed, int[] syms, int from, int to) {
+		int[] groupCount = null;
+		int[] groupMax = null;
+
+		for (int i = from; i < to; i++) {
+			int s = syms[i];
+			int rem = lengths[s] - consumed;
+			int code = remainingBits(s, rem);
+
+			if (rem <= bits) {
+				int start = offset + (code << (bits - rem));
+				int end = start + (1 << (bits - rem));
+				for (int j = start; j < end; j++) {
+					table[j] = (s << 8) | rem;
+				}
+			}
+			else {
+				if (groupCount == null) {
+					groupCount = new int[1 << bits];
+					groupMax = new int[1 << bits];
+				}
+				int prefix = code >>> (rem - bits);
+				groupCount[prefix]++;
+				groupMax[prefix] = Math.max(groupMax[prefix], rem - bits);
+			}
+		}
+
+		if (groupCount == null) {
+			return;
+		}
+
+		// sort the long codes by prefix so each group is contiguous
+		int[] start = new int[(1 << bits) + 1];
+		for (int p = 0; p < (1 << bits); p++) {
+			start[p + 1] = start[p] + groupCount[p];
+		}
+		int[] sorted = new int[start[1 << bits]];
+		int[] next = start.clone();
+		for (int i = from; i < to; i++) {
+			int s = syms[i];
+			int rem = lengths[s] - consumed;
+			if (rem > bits) {
+				sorted[next[remainingBits(s, rem) >>> (rem - bits)]++] = s;
+			}
+		}
+
+		for (int p = 0; p < (1 << bits); p++) {
+			if (groupCount[p] == 0) {
+				continue;
+			}
+			int childBits = Math.min(groupMax[p], ROOT_BITS);
+			int child = allocate(1 << childBits);
+			table[offset + p] = LINK | (child << 8) | childBits;
+			fill(child, childBits, consumed + bits, sorted, start[p], start[p + 1]);
+		}
+	}
+
+	/*
+	 Returns the last 'rem' bits of the code of symbol s.
+	*/
+	private int remainingBits(int s, int rem) {
+		return (int) (codes[s] & ((1L << rem) - 1));
+	}
+
+	/*
+	 Reserves n entries at the end of the table and returns their offset.
+	*/
+	private int allocate(int n) {
+		if (size + n > table.length) {
+			int[] bigger = new int[Math.max(2 * table.length, size + n)];
+			System.arraycopy(table, 0, bigger, 0, size);
+			table = bigger;
+		}
+		size += n;
+		return size - n;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * 	@file	Histogram.java
+ * 	@brief	Counts the frequency of each byte value into a long[256].
+ *		The input is read in large chunks and counted four bytes
+ *		at a time into four separate sub-histograms, so that a run
+ *		of the same byte does not make every increment wait for
+ *		the previous one to be stored. The sub-histograms are
+ *		added together at the end of each chunk.
+ *		Large buffers are counted in parallel: a fork/join task
+ *		splits the buffer into segments, counts each segment into
+ *		its own histogram and adds the histograms together.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public final class Histogram {
+	/* Size of the chunks read from a stream */
+	public static final int CHUNK = 1 << 20;
+
+	/* Buffers are split until the segments are at most this size */
+	public static final int SEGMENT = 4 << 20;
+
+	private static final VarHandle WORD =
+		MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private Histogram() {
+	}
+
+	/*
+	 Returns the frequency of each byte value in the stream.
+	*/
+	public static long[] count(InputStream in) throws IOException {
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		byte[] buf = new byte[CHUNK];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			count(buf, 0, n, freq);
+		}
+		return freq;
+	}
+
+	/*
+	 Adds the frequency of each remaining byte of the buffer to freq.
+	 Direct (mapped) buffers are copied out in chunks so the counting
+	 loop always runs over a byte array.
+	*/
+	public static void count(ByteBuffer buf, long[] freq) {
+		if (buf.hasArray()) {
+			count(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), freq);
+			buf.position(buf.limit());
+			return;
+		}
+
+		byte[] chunk = new byte[Math.min(CHUNK, buf.remaining())];
+		while (buf.hasRemaining()) {
+			int n = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, n);
+			count(chunk, 0, n, freq);
+		}
+	}
+
+	/*
+	 Adds the frequency of each remaining byte of the buffer to freq,
+	 counting segments of the buffer in parallel on the common
+	 fork/join pool.
+	*/
+	public static void parallelCount(ByteBuffer buf, long[] freq) {
+		long[] counted = ForkJoinPool.commonPool().invoke(new CountTask(buf.slice()));
+		for (int b = 0; b < counted.length; b++) {
+			freq[b] += counted[b];
+		}
+		buf.position(buf.limit());
+	}
+
+	/*
+	 Adds the frequency of each byte value in buf[offset..offset+length)
+	 to freq.
+	*/
+	public static void count(byte[] buf, int offset, int length, long[] freq) {
+		int[] c0 = new int[256];
+		int[] c1 = new int[256];
+		int[] c2 = new int[256];
+		int[] c3 = new int[256];
+
+		int i = offset;
+		int end = offset + length;
+		for (; i + 4 <= end; i += 4) {
+			int w = (int) WORD.get(buf, i);
+			c0[w & 0xff]++;
+			c1[(w >>> 8) & 0xff]++;
+			c2[(w >>> 16) & 0xff]++;
+			c3[w >>> 24]++;
+		}
+		for (; i < end; i++) {
+			c0[buf[i] & 0xff]++;
+		}
+
+		for (int b = 0; b < 256; b++) {
+			freq[b] += (long) c0[b] + c1[b] + c2[b] + c3[b];
+		}
+	}
+
+	/*
+	 Fork/join task which counts a buffer into its own histogram,
+	 splitting it in half while it is larger than SEGMENT.
+	*/
+	private static class CountTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer buf;
+
+		CountTask(ByteBuffer buffer) {
+			buf = buffer;
+		}
+
+		protected long[] compute() {
+			int n = buf.remaining();
+			if (n <= SEGMENT) {
+				long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+				count(buf, freq);
+				return freq;
+			}
+
+			CountTask left = new CountTask(buf.slice(0, n / 2));
+			CountTask right = new CountTask(buf.slice(n / 2, n - n / 2));
+			left.fork();
+			long[] freq = right.compute();
+			long[] other = left.join();
+			for (int b = 0; b < freq.length; b++) {
+				freq[b] += other[b];
+			}
+			return freq;
+		}
+	}
+}
@@ -10,15 +10,67 @@
  */
 
  /* Import required packages */
-import java.util.HashMap;
-import java.util.NoSuchElementException;	// for using BinaryIn and BinaryOut
+import java.util.Arrays;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 public class HuffmanCompress implements Huffman {
+	/* Characters are read from the input file one byte at a time */
+	public static final int ALPHABET_SIZE = 256;
+
+	/* Compressed files without a frequency file start with "Huf" and a format byte */
+	public static final int MAGIC = 0x48756600;
+	public static final int FORMAT_CANONICAL = 1;
+	public static final int FORMAT_BLOCKED = 2;
+	public static final int FORMAT_ADAPTIVE = 3;
+	public static final int FORMAT_SHARED = 4;
+	public static final int FORMAT_STORED = 5;
+	public static final int FORMAT_WIDE = 6;
+	public static final int FORMAT_WORDS = 7;
+
+	/* A file is stored as is when coding it would save less than 1/STORED_GAIN of its size */
+	public static final int STORED_GAIN = 32;
+
+	/* Worker threads for block compression */
+	public static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	/* Longest codeword used by the canonical and block formats */
+	private int maxCodeLength = DecodeTable.MAX_CODE_LENGTH;
+
+	/* Order-1 context tables for encodeBlocks() */
+	private boolean order1 = false;
+
+	/* Burrows-Wheeler blocks for encodeBlocks() */
+	private boolean bwt = false;
+
+	/* LZ77 level of encodeBlocks(), 0 for none */
+	private int lzLevel = 0;
+
+	/* Original bytes between sync points of the canonical format, 0 for none */
+	private int syncInterval = 0;
+
+	/* Symbols of encode(inputFile, outputFile): bytes, byte pairs or digrams */
+	private int alphabet = WideAlphabet.BYTES;
+
 	public static void main(String[] args) {
 		Huffman  huffman = new HuffmanCompress();
 
@@ -29,6 +81,33 @@ public class HuffmanCompress implements Huffman {
 		// jpg files -> ur.jpg same as ur_dec.jpg
 		huffman.encode("ur.jpg", "ur.enc", "freq.txt");
 		huffman.decode("ur.enc", "ur_dec.jpg", "freq.txt");
+
+		// canonical codes -> code lengths stored in out.huf, no freq file
+		HuffmanCompress canonical = new HuffmanCompress();
+		canonical.encode("alice30.txt", "out.huf");
+		canonical.decode("out.huf", "alice30_dec.txt");
+
+		// independent blocks -> compressed and decompressed in parallel
+		canonical.encodeBlocks("ur.jpg", "ur.blk", 4096);
+		canonical.decode("ur.blk", "ur_dec.jpg");
+
+		// sync points -> a range is decoded from the nearest sync point
+		canonical.setSyncInterval(SyncIndex.DEFAULT_INTERVAL);
+		canonical.encode("alice30.txt", "out.huf");
+		try {
+			System.out.println(new String(decodeRange("out.huf", 100000, 60), "US-ASCII"));
+		}
+		catch (IOException e) {
+			System.out.println("Error decoding out.huf.");
+		}
+
+		// words -> a vocabulary of the text's words as the alphabet
+		canonical.encodeWords("alice30.txt", "out.whf");
+		canonical.decode("out.whf", "alice30_dec.txt");
+
+		// adaptive -> single pass, no frequency table at all
+		canonical.encodeAdaptive("alice30.txt", "out.ahf");
+		canonical.decode("out.ahf", "alice30_dec.txt");
 	}
 	
 	/*
@@ -46,49 +125,40 @@ public class HuffmanCompress implements Huffman {
 	 	encoding in the compressed file (output file).
 	*/
 	public void encode(String inputFile, String outputFile, String freqFile){
-		// read input file and create freq file
-		HashMap<Character, Integer> map = readFile(inputFile);
-		createFreqFile(map, freqFile);
+		// the input file is opened (and mapped) once for both passes
+		Instrumentation.Timer timer = Instrumentation.begin(Metrics.Phase.READ);
+		try (MappedInput input = new MappedInput(inputFile);
+		     FileOutputStream out = new FileOutputStream(outputFile)) {
+			long size = input.size();
+			Instrumentation.end(timer, size, 0, 0);
 
-		// create minimum priority queue
-		MinPQ pq = new MinPQ(map.size());
-		for (Character c : map.keySet()) {
-			Node newNode = new Node(c, map.get(c), null, null);
-			pq.insert(newNode);
-		}
+			// read input file and create freq file
+			timer = Instrumentation.begin(Metrics.Phase.HISTOGRAM);
+			long[] freq = input.histogram();
+			Instrumentation.end(timer, size, 0, size);
 
-		// build huffman tree
-		Node root = buildTree(map);
+			timer = Instrumentation.begin(Metrics.Phase.FREQ_FILE);
+			createFreqFile(freq, freqFile);
+			Instrumentation.end(timer, 0, (timer != null) ? new File(freqFile).length() : 0, 0);
 
-		// create codeword table
-		HashMap<Character, String> table = createCodewordTable(root);
+			// build huffman tree and codeword table (or reuse them)
+			timer = Instrumentation.begin(Metrics.Phase.BUILD_TREE);
+			CodeTable table = TableCache.shared().forTree(freq);
+			Instrumentation.end(timer, 0, 0, distinct(freq), table, freq);
 
-		BinaryOut encoded = new BinaryOut(outputFile);
-		BinaryIn original = new BinaryIn(inputFile);
+			// write encoding for character in new binary file
+			timer = Instrumentation.begin(Metrics.Phase.ENCODE);
+			BitWriter encoded = new BitWriter(out);
+			input.encode(table, encoded);
 
-		// write encoding for character in new binary file
-		char c = 0;
-		try {
-			while ((c = original.readChar()) != -1) {
-				String enc = table.get(c);
-				for (int i = 0; i < enc.length(); i++) {
-					if (enc.charAt(i) == '0') {
-						encoded.write(false);
-					}
-					else {
-						encoded.write(true);
-					}
-				}
-			}
 			// add padding to make multiple of a byte
 			encoded.flush();
+			Instrumentation.end(timer, size, encoded.bitCount() / 8, size, table, freq);
 		}
-		catch (NoSuchElementException e) {
-			// processed through file
+		catch (IOException e) {
+			System.out.println("Error encoding " + inputFile + ".");
+			System.exit(0);
 		}
-
-		// close file
-		encoded.close();
 	}
 
 	/*
@@ -101,63 +171,631 @@ public class HuffmanCompress implements Huffman {
 	 	Compression Algorithm.
 	 	Reads the frequency file to create the same Huffman tree which is
 	 	created during encoding/compression.
-	 	Reads the compressed file bit by bit and traverses down the tree
-	 	until a leaf node is reached printing the character when it does.
-
-	 => Have 2 options to traverse and print: iterative and recursive.
-	 Iterative goes easy on the stack but uses exception handling more
-	 often as it checks for EOF after every bit read. Still, it is much 
-	 simpler than the recursive implementation - which is more compact. <=
+	 	Instead of reading the compressed file bit by bit and traversing
+	 	down the tree, a lookup table built from the tree's codewords
+	 	resolves a character and its code length from several bits at
+	 	a time (see DecodeTable).
+	 	The number of characters to decode is the sum of the frequencies
+	 	so the padding bits at the end of the file are not decoded.
 	*/
    	public void decode(String inputFile, String outputFile, String freqFile){
-		// read freq file and create hashmap
-		HashMap<Character, Integer> map = getHashMap(freqFile);
+		// read freq file
+		Instrumentation.Timer timer = Instrumentation.begin(Metrics.Phase.READ_FREQ_FILE);
+		long[] freq = readFreqFile(freqFile);
+		Instrumentation.end(timer, (timer != null) ? new File(freqFile).length() : 0, 0, distinct(freq));
 
-		// create huffman tree
-		Node root = buildTree(map);
+		// total number of characters in the original file
+		long count = total(freq);
 
-		BinaryIn encoded = new BinaryIn(inputFile);
-		BinaryOut decoded = new BinaryOut(outputFile);
-		
-		// read bits and replace encodings with characters until EOF
-		Node node = root;
-		Boolean EOF = false;
-		while (EOF == false) {
-			try { 
-				/* iterative method to write decompressed file */
-				Boolean bit = encoded.readBoolean();
-				if (bit == false) {
-					node = node.left;
+		try (FileInputStream in = new FileInputStream(inputFile);
+		     FileOutputStream out = new FileOutputStream(outputFile)) {
+			if (count == 0) {
+				// empty file
+				return;
+			}
+
+			// create huffman tree and lookup tables (or reuse them)
+			timer = Instrumentation.begin(Metrics.Phase.BUILD_TREE);
+			CodeTable table = TableCache.shared().forTree(freq);
+			Instrumentation.end(timer, 0, 0, distinct(freq), table, freq);
+
+			if (table.maxLength() == 0) {
+				// only one character: its codeword is empty
+				int ch = 0;
+				while (freq[ch] == 0) {
+					ch++;
 				}
-				else {
-					node = node.right;
+				byte[] run = new byte[(int) Math.min(count, 1 << 16)];
+				Arrays.fill(run, (byte) ch);
+				for (long left = count; left > 0; left -= run.length) {
+					out.write(run, 0, (int) Math.min(left, run.length));
 				}
+				return;
+			}
+
+			timer = Instrumentation.begin(Metrics.Phase.DECODE);
+			table.decode(new BitReader(in), out, count);
+			Instrumentation.end(timer, in.getChannel().size(), count, count, table, freq);
+		}
+		catch (IOException e) {
+			System.out.println("Error decoding " + inputFile + ".");
+			System.exit(0);
+		}
+   	}
 	
-				if (node.isLeaf()) {
-					decoded.write(node.ch);
-					node = root;
+	/*
+	 @fn 	encode()
+
+	 @param	input file name	 (to be compressed)
+	 @param output file name (compressed file)
+
+	 @brief	Encodes the input file using canonical Huffman codes.
+	 	No frequency file is produced. Instead, the compressed file
+	 	starts with a small header holding the number of characters
+	 	and the length of each character's codeword, which is all the
+	 	decoder needs to rebuild the codewords (see CodeTable).
+	 	File format: <magic + format><character count><code lengths><bits>
+	 	When the code lengths show that coding would hardly save
+	 	anything (see worthCoding()), the file is copied as is
+	 	instead: <magic + FORMAT_STORED><original bytes>
+	 	With setSyncInterval() the sync points used by decodeRange()
+	 	are written to outputFile.idx (see SyncIndex).
+	 	With setAlphabet() the symbols are byte pairs or digrams
+	 	instead (see WideAlphabet). Their codewords may be longer
+	 	than setMaxCodeLength() where the alphabet needs it, and no
+	 	sync points are written: decodeRange() decodes such a file
+	 	from the start.
+	*/
+	public void encode(String inputFile, String outputFile) {
+		try {
+			if (alphabet != WideAlphabet.BYTES) {
+				byte[] data = Files.readAllBytes(Paths.get(inputFile));
+				Files.write(Paths.get(outputFile), WideAlphabet.encode(data, 0, data.length, alphabet, maxCodeLength));
+				Files.deleteIfExists(Paths.get(outputFile + SyncIndex.SUFFIX));
+			}
+			else {
+				encodeCanonical(inputFile, outputFile, maxCodeLength, syncInterval);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Error writing " + outputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 Writes the canonical format of encode(inputFile, outputFile) with
+	 the given longest codeword and sync interval (0 for none).
+	*/
+	public static void encodeCanonical(String inputFile, String outputFile, int maxLength, int syncInterval) throws IOException {
+		// a sidecar left by an earlier file of the same name
+		Files.deleteIfExists(Paths.get(outputFile + SyncIndex.SUFFIX));
+
+		Instrumentation.Timer timer = Instrumentation.begin(Metrics.Phase.READ);
+		try (MappedInput input = new MappedInput(inputFile);
+		     FileOutputStream stream = new FileOutputStream(outputFile);
+		     BufferedOutputStream file = new BufferedOutputStream(stream)) {
+			long size = input.size();
+			Instrumentation.end(timer, size, 0, 0);
+
+			timer = Instrumentation.begin(Metrics.Phase.HISTOGRAM);
+			long[] freq = input.histogram();
+			Instrumentation.end(timer, size, 0, size);
+
+			timer = Instrumentation.begin(Metrics.Phase.BUILD_TREE);
+			CodeTable table = TableCache.shared().forFrequencies(freq, maxLength);
+			Instrumentation.end(timer, 0, 0, distinct(freq), table, freq);
+
+			DataOutputStream header = new DataOutputStream(file);
+			if (!worthCoding(input.size(), table, freq)) {
+				// copied by the kernel, without passing through the heap
+				header.writeInt(MAGIC | FORMAT_STORED);
+				header.flush();
+				try (FileChannel src = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+					transfer(src, 0, input.size(), stream.getChannel());
 				}
+				return;
+			}
+			writeCanonicalHeader(header, total(freq), table);
+			header.flush();
 
-				/* if the recursive method is to be used */
-				//char c = traverseTree(root, encoded);
-				//decoded.write(c);
+			timer = Instrumentation.begin(Metrics.Phase.ENCODE);
+			BitWriter encoded = new BitWriter(file);
+			long[] syncPoints = null;
+			if (syncInterval > 0) {
+				syncPoints = new long[SyncIndex.count(input.size(), syncInterval)];
+				input.encode(table, encoded, syncInterval, syncPoints);
+			}
+			else {
+				input.encode(table, encoded);
 			}
-			catch (NoSuchElementException e) {
-				// end of file
-				EOF = true;
+			encoded.flush();
+			if (syncPoints != null) {
+				long length = header.size() + encoded.bitCount() / 8;
+				new SyncIndex(length, SyncIndex.headerCrc(total(freq), table), syncInterval, header.size(), syncPoints).write(outputFile);
 			}
+			Instrumentation.end(timer, size, header.size() + encoded.bitCount() / 8, size, table, freq);
 		}
+	}
+
+	/*
+	 Returns src[offset..offset+length) in the canonical format of
+	 encode(inputFile, outputFile), built in memory.
+	*/
+	public static byte[] encodeCanonical(byte[] src, int offset, int length, int maxLength) throws IOException {
+		long[] freq = new long[ALPHABET_SIZE];
+		Histogram.count(src, offset, length, freq);
+		CodeTable table = TableCache.shared().forFrequencies(freq, maxLength);
+		if (!worthCoding(length, table, freq)) {
+			byte[] stored = new byte[4 + length];
+			ByteBuffer.wrap(stored).putInt(MAGIC | FORMAT_STORED);
+			System.arraycopy(src, offset, stored, 4, length);
+			return stored;
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 2 + 512);
+		writeCanonicalHeader(new DataOutputStream(buf), length, table);
+		BitWriter encoded = new BitWriter(buf, length / 2 + 64);
+		table.encode(src, offset, length, encoded);
+		encoded.flush();
+		return buf.toByteArray();
+	}
+
+	/*
+	 Returns true if a file of 'size' bytes with the given frequency
+	 table gets at least 1/STORED_GAIN smaller when coded with 'table',
+	 counting the header. Media which is already compressed (JPEG, ZIP)
+	 usually does not, and is cheaper to copy than to code.
+	*/
+	public static boolean worthCoding(long size, CodeTable table, long[] freq) {
+		long coded = 12 + table.lengthsSize() + table.encodedSize(freq);
+		return coded <= size - size / STORED_GAIN - 4;
+	}
+
+	/*
+	 Copies 'count' bytes from position 'from' of src to dst with
+	 FileChannel.transferTo(), which may copy fewer bytes per call.
+	*/
+	static void transfer(FileChannel src, long from, long count, FileChannel dst) throws IOException {
+		for (long done = 0; done < count; ) {
+			long n = src.transferTo(from + done, count - done, dst);
+			if (n <= 0 && src.size() <= from + done) {
+				throw new EOFException("Unexpected end of file");
+			}
+			done += n;
+		}
+	}
+
+	/*
+	 Writes <magic + format><character count><code lengths>.
+	*/
+	private static void writeCanonicalHeader(DataOutputStream header, long count, CodeTable table) throws IOException {
+		header.writeInt(MAGIC | FORMAT_CANONICAL);
+		header.writeLong(count);
+		table.writeLengths(header);
+	}
+
+	/*
+	 @fn 	decode()
+
+	 @param	input file name	 (compressed file)
+	 @param output file name (to be decompressed)
+
+	 @brief	Decodes a file compressed by encode(inputFile, outputFile),
+	 	encodeBlocks(), encodeAdaptive(), encodeShared() or
+	 	encodeWords(), with any alphabet.
+	 	The codewords are rebuilt from the code lengths in the header
+	 	so no frequency file or text parsing is needed.
+	*/
+	public void decode(String inputFile, String outputFile) {
+		try {
+			int format = readFormat(inputFile);
+			if (format == FORMAT_CANONICAL) {
+				decodeCanonical(inputFile, outputFile);
+			}
+			else if (format == FORMAT_BLOCKED) {
+				BlockCodec.decode(inputFile, outputFile, THREADS);
+			}
+			else if (format == FORMAT_ADAPTIVE) {
+				try (InputStream in = new FileInputStream(inputFile);
+				     OutputStream out = new FileOutputStream(outputFile)) {
+					AdaptiveHuffman.decode(in, out);
+				}
+			}
+			else if (format == FORMAT_SHARED) {
+				byte[] record = Files.readAllBytes(Paths.get(inputFile));
+				Files.write(Paths.get(outputFile), SharedTable.decode(record, SharedTable.DIRECTORY));
+			}
+			else if (format == FORMAT_WIDE) {
+				byte[] data = Files.readAllBytes(Paths.get(inputFile));
+				Files.write(Paths.get(outputFile), WideAlphabet.decode(data, 0, data.length));
+			}
+			else if (format == FORMAT_WORDS) {
+				byte[] data = Files.readAllBytes(Paths.get(inputFile));
+				Files.write(Paths.get(outputFile), WordHuffman.decode(data, 0, data.length));
+			}
+			else if (format == FORMAT_STORED) {
+				try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+				     FileOutputStream out = new FileOutputStream(outputFile)) {
+					transfer(in, 4, in.size() - 4, out.getChannel());
+				}
+			}
+			else {
+				System.out.println(inputFile + " is not a compressed file.");
+				System.exit(0);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Error decoding " + inputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 @fn 	encodeBlocks()
+
+	 @param	input file name	 (to be compressed)
+	 @param output file name (compressed file)
+	 @param	block size in bytes
+
+	 @brief	Encodes the input file in independent blocks, each with its
+	 	own code lengths, on one thread per processor. The file ends
+	 	with an index of the blocks so decode() can also decompress
+	 	them in parallel (see BlockCodec).
+	*/
+	public void encodeBlocks(String inputFile, String outputFile, int blockSize) {
+		try {
+			BlockCodec.Options options = BlockCodec.Options.DEFAULT.withMaxLength(maxCodeLength)
+				.withOrder1(order1).withBwt(bwt).withLevel(lzLevel);
+			BlockCodec.encode(inputFile, outputFile, blockSize, options, THREADS);
+		}
+		catch (IOException e) {
+			System.out.println("Error encoding " + inputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 @fn 	encodeAdaptive()
+
+	 @param	input file name	 (to be compressed)
+	 @param output file name (compressed file)
+
+	 @brief	Encodes the input file in a single pass with adaptive
+	 	Huffman coding: the tree is updated after every character
+	 	so no frequency table is needed (see AdaptiveHuffman).
+	*/
+	public void encodeAdaptive(String inputFile, String outputFile) {
+		try (InputStream in = new FileInputStream(inputFile);
+		     OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+			AdaptiveHuffman.encode(in, out);
+		}
+		catch (IOException e) {
+			System.out.println("Error encoding " + inputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 @fn 	encodeShared()
+
+	 @param	input file name	 (to be compressed)
+	 @param output file name (compressed file)
+	 @param	trained code table
+
+	 @brief	Encodes the input file with a code table trained on similar
+	 	files (see SharedTable). There is no frequency pass and no
+	 	tree; the compressed file only stores the table's ID, which
+	 	decode() looks up in SharedTable.DIRECTORY.
+	*/
+	public void encodeShared(String inputFile, String outputFile, SharedTable table) {
+		try {
+			byte[] data = Files.readAllBytes(Paths.get(inputFile));
+			Files.write(Paths.get(outputFile), table.encode(data, 0, data.length));
+		}
+		catch (IOException e) {
+			System.out.println("Error encoding " + inputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 @fn 	encodeWords()
+
+	 @param	input file name	 (to be compressed)
+	 @param output file name (compressed file)
+
+	 @brief	Encodes a text file with words and the runs between them
+	 	as symbols instead of bytes (see WordHuffman). The
+	 	vocabulary is stored in the compressed file; rare words are
+	 	spelled out with a byte code.
+	*/
+	public void encodeWords(String inputFile, String outputFile) {
+		try {
+			byte[] data = Files.readAllBytes(Paths.get(inputFile));
+			Files.write(Paths.get(outputFile), WordHuffman.encode(data, 0, data.length, maxCodeLength));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println("Error encoding " + inputFile + ".");
+			System.exit(0);
+		}
+	}
+
+	/*
+	 @fn 	analyze()
+
+	 @param	input file name
+
+	 @brief	Reports the entropy of the input file, the bits per character
+	 	of its Huffman code, the size of the frequency file and of the
+	 	canonical header, and the code lengths, without writing any
+	 	output (see CompressionReport).
+	*/
+	public CompressionReport analyze(String inputFile) {
+		try {
+			return CompressionReport.analyze(inputFile);
+		}
+		catch (IOException e) {
+			System.out.println("Error reading " + inputFile + ".");
+			System.exit(0);
+			return null;
+		}
+	}
+
+	/*
+	 Sets the longest codeword (in bits) that encode(inputFile, outputFile)
+	 and encodeBlocks() may use. With 12 bits or less every character is
+	 decoded with a single table lookup. PackageMerge.cost() reports how
+	 much larger this makes the output.
+	*/
+	public void setMaxCodeLength(int maxLength) {
+		if (maxLength < 8 || maxLength > DecodeTable.MAX_CODE_LENGTH) {
+			throw new IllegalArgumentException("Code length must be between 8 and " + DecodeTable.MAX_CODE_LENGTH);
+		}
+		maxCodeLength = maxLength;
+	}
+
+	/*
+	 Makes encodeBlocks() code each character with a table chosen by
+	 the character before it, in the blocks where that is smaller
+	 (see ContextTables). Decoding needs no setting.
+	*/
+	public void setOrder1(boolean contextTables) {
+		order1 = contextTables;
+	}
+
+	/*
+	 Makes encodeBlocks() run each block through the Burrows-Wheeler
+	 transform, move-to-front and zero run length coding before the
+	 Huffman codes, in the blocks where that is smaller (see
+	 BurrowsWheeler). The blocks are transformed in parallel; blocks
+	 of 256 KiB to 1 MiB work best. Decoding needs no setting.
+	*/
+	public void setBwt(boolean burrowsWheeler) {
+		bwt = burrowsWheeler;
+	}
+
+	/*
+	 Makes encodeBlocks() replace repeated strings in each block with
+	 references back up to 32 KiB, as DEFLATE does, in the blocks where
+	 that is smaller (see Lz77). Level 1 searches least and is fastest,
+	 level 9 searches most; 0 turns matching off. Decoding needs no
+	 setting.
+	*/
+	public void setLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Level must be between 0 and 9");
+		}
+		lzLevel = level;
+	}
+
+	/*
+	 Makes encode(inputFile, outputFile) code 16-bit symbols: every
+	 byte pair (WideAlphabet.PAIRS), or the bytes plus the most
+	 frequent byte pairs of the file (WideAlphabet.DIGRAMS). The file
+	 is read into memory. WideAlphabet.BYTES goes back to bytes.
+	*/
+	public void setAlphabet(int mode) {
+		if (mode != WideAlphabet.BYTES && mode != WideAlphabet.PAIRS && mode != WideAlphabet.DIGRAMS) {
+			throw new IllegalArgumentException("Unknown alphabet mode " + mode);
+		}
+		alphabet = mode;
+	}
+
+	/*
+	 Makes encode(inputFile, outputFile) write a sync point every
+	 'interval' original bytes to a sidecar file, so decodeRange() only
+	 decodes from the nearest sync point. 0 turns sync points off.
+	 Sync points are only written for byte symbols, not with
+	 setAlphabet(PAIRS or DIGRAMS).
+	*/
+	public void setSyncInterval(int interval) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("Negative sync interval");
+		}
+		syncInterval = interval;
+	}
+
+	/*
+	 @fn 	decodeRange()
+
+	 @param	input file name	 (compressed file)
+	 @param	offset of the first byte in the original file
+	 @param	number of bytes
+
+	 @brief	Returns 'length' bytes of the original file starting at
+	 	'offset', or fewer at the end of the file, without decoding
+	 	the whole file. Block files seek to the blocks holding the
+	 	range using their index. Canonical files start from the
+	 	nearest sync point when they have a sync index (see
+	 	setSyncInterval()) and from the first bit otherwise.
+	 	Adaptive, shared table, wide alphabet and word files are always
+	 	decoded from the start; stored files are read directly.
+	*/
+	public static byte[] decodeRange(String inputFile, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Negative offset or length");
+		}
+
+		int format = readFormat(inputFile);
+		if (format == FORMAT_CANONICAL) {
+			return decodeCanonicalRange(inputFile, offset, length);
+		}
+		else if (format == FORMAT_BLOCKED) {
+			return BlockCodec.decodeRange(inputFile, offset, length);
+		}
+		else if (format == FORMAT_ADAPTIVE) {
+			RangeOutputStream range = new RangeOutputStream(offset, length);
+			try (InputStream in = new BufferedInputStream(new FileInputStream(inputFile))) {
+				AdaptiveHuffman.decode(in, range);
+			}
+			return range.toByteArray();
+		}
+		else if (format == FORMAT_SHARED) {
+			byte[] all = SharedTable.decode(Files.readAllBytes(Paths.get(inputFile)), SharedTable.DIRECTORY);
+			return Arrays.copyOfRange(all, (int) Math.min(offset, all.length), (int) Math.min(offset + length, all.length));
+		}
+		else if (format == FORMAT_WIDE || format == FORMAT_WORDS) {
+			byte[] data = Files.readAllBytes(Paths.get(inputFile));
+			byte[] all = (format == FORMAT_WIDE) ? WideAlphabet.decode(data, 0, data.length) : WordHuffman.decode(data, 0, data.length);
+			return Arrays.copyOfRange(all, (int) Math.min(offset, all.length), (int) Math.min(offset + length, all.length));
+		}
+		else if (format == FORMAT_STORED) {
+			try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+				long end = Math.min(in.size() - 4, offset + length);
+				return (offset < end) ? BlockCodec.read(in, 4 + offset, (int) (end - offset)) : new byte[0];
+			}
+		}
+		throw new IOException(inputFile + " is not a compressed file");
+	}
+
+	/*
+	 Returns the format byte of a compressed file, or -1 if the file
+	 does not start with the magic number.
+	*/
+	public static int readFormat(String inputFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(inputFile))) {
+			int magic = in.readInt();
+			return ((magic & ~0xff) == MAGIC) ? (magic & 0xff) : -1;
+		}
+		catch (EOFException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 Decodes a file in the canonical format.
+	*/
+	private static void decodeCanonical(String inputFile, String outputFile) throws IOException {
+		try (BufferedInputStream file = new BufferedInputStream(new FileInputStream(inputFile));
+		     FileOutputStream out = new FileOutputStream(outputFile)) {
+			DataInputStream header = new DataInputStream(file);
+			header.readInt();
+			long count = header.readLong();
+			if (count == 0) {
+				return;
+			}
+
+			Instrumentation.Timer timer = Instrumentation.begin(Metrics.Phase.BUILD_TREE);
+			byte[] lengths = CodeTable.readLengths(header, ALPHABET_SIZE);
+			CodeTable table = TableCache.shared().canonical(lengths);
+			// the frequencies are not stored: the average is the payload
+			// bits (with the padding of the last byte) per character
+			long size = (timer != null) ? new File(inputFile).length() : 0;
+			double average = 8.0 * (size - 12 - table.lengthsSize()) / count;
+			Instrumentation.end(timer, 0, 0, distinct(lengths), table.maxLength(), average);
+
+			timer = Instrumentation.begin(Metrics.Phase.DECODE);
+			table.decode(new BitReader(file), out, count);
+			Instrumentation.end(timer, size, count, count, table.maxLength(), average);
+		}
+	}
+
+	/*
+	 Decodes a range of a file in the canonical format. Only the bytes
+	 from the sync point before the range to its end are decoded, only
+	 the compressed bytes they take up are read, and only the range is
+	 kept in memory.
+	*/
+	private static byte[] decodeCanonicalRange(String inputFile, long offset, int length) throws IOException {
+		try (FileChannel file = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+			DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file), 1 << 10));
+			header.readInt();
+			long count = header.readLong();
+			long end = Math.min(count, offset + length);
+			if (offset >= end) {
+				return new byte[0];
+			}
+			CodeTable table = TableCache.shared().canonical(CodeTable.readLengths(header, ALPHABET_SIZE));
+
+			// start at the nearest sync point of a sidecar which belongs
+			// to this file, or at the first bit
+			long start = 0;
+			long bit = 0;
+			DataOutputStream lengths = new DataOutputStream(OutputStream.nullOutputStream());
+			table.writeLengths(lengths);
+			long dataOffset = 4 + 8 + lengths.size();
+			SyncIndex index = SyncIndex.find(inputFile, file.size(), SyncIndex.headerCrc(count, table));
+			if (index != null && index.dataOffset == dataOffset) {
+				int i = (int) Math.min(offset / index.interval, index.bitOffsets.length - 1);
+				start = (long) i * index.interval;
+				bit = index.bitOffsets[i];
+			}
+
+			// stream from there, keeping only the characters of the range:
+			// without a sync point everything before it is decoded too
+			file.position(dataOffset + bit / 8);
+			BitReader in = new BitReader(new BufferedInputStream(Channels.newInputStream(file), 1 << 16));
+			if (bit % 8 > 0) {
+				in.read((int) (bit % 8));
+			}
+			RangeOutputStream range = new RangeOutputStream(offset - start, (int) (end - offset));
+			table.decode(in, range, end - start);
+			return range.toByteArray();
+		}
+	}
+
+	/*
+	 Output stream which keeps only the bytes written between
+	 positions 'offset' and 'offset' + 'length'. The buffer grows with
+	 the bytes kept, so a length past the end of the stream costs
+	 nothing.
+	*/
+	private static class RangeOutputStream extends OutputStream {
+		private final long offset;
+		private final long end;
+		private final ByteArrayOutputStream range = new ByteArrayOutputStream();
+		private long position;
+
+		RangeOutputStream(long from, int length) {
+			offset = from;
+			end = from + length;
+		}
+
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			long from = Math.max(position, offset);
+			long to = Math.min(position + len, end);
+			if (from < to) {
+				range.write(b, off + (int) (from - position), (int) (to - from));
+			}
+			position += len;
+		}
+
+		byte[] toByteArray() {
+			return range.toByteArray();
+		}
+	}
 
-		// close file
-		decoded.close();
-   	}
-	
 	/*
 	   Recursive method to traverse down the tree while decompression.
 	   Returns the character at the leaf node after traversing the tree
 	   according to the bits read from the encoded file.
 
-	   => TESTED: works perfectly, however iterative method preferred (much simpler) <=
+	   => TESTED: works perfectly, however the lookup table is much faster <=
 	*/
 	public static char traverseTree(Node root, BinaryIn in) {
 		char c;
@@ -171,7 +809,7 @@ public class HuffmanCompress implements Huffman {
 			}
 		}
 		else {
-			c = root.ch;
+			c = (char) root.ch;
 		}
 		
 		return c;
@@ -179,23 +817,19 @@ public class HuffmanCompress implements Huffman {
 
 	/*
 	   Write every character's binary representation along with its frequency
-	   contained in the hashmap/dictionary to a file in the format:
+	   contained in the frequency table to a file in the format:
 	   <binary_representation>:<frequency>
 	*/
-	public static void createFreqFile(HashMap<Character, Integer> map, String filename) {
-		// write freq table to file
-		try {
-			PrintStream out = new PrintStream(new File(filename));
-			PrintStream console = System.out;
-			System.setOut(out);
-
-			for (Character c : map.keySet()) {
-				System.out.print(charToBinary(c));
-				System.out.println(":" + map.get(c));
+	public static void createFreqFile(long[] freq, String filename) {
+		// write freq table to file (not through System.out, which is
+		// shared by every thread)
+		try (PrintStream out = new PrintStream(new File(filename))) {
+			for (char c = 0; c < freq.length; c++) {
+				if (freq[c] > 0) {
+					out.print(charToBinary(c));
+					out.println(":" + freq[c]);
+				}
 			}
-
-			out.close();
-			System.setOut(console);
 		}	
 		catch (FileNotFoundException e) {
 			System.out.println("Error opening " + filename + ".");
@@ -204,30 +838,55 @@ public class HuffmanCompress implements Huffman {
 	}
 	
 	/*
-	   Returns a hashmap with each key representing a character in 
-	   the input file and the value representing its frequency.
+	   Returns the frequency table of the input file: the value at index c
+	   is the number of occurances of character c.
 	*/
-	public static HashMap<Character, Integer> readFile(String inputFile) throws NoSuchElementException {
-		HashMap<Character, Integer> map = new HashMap<Character, Integer>();
-		
-		BinaryIn in = new BinaryIn(inputFile);
+	public static long[] readFile(String inputFile) {
+		try (FileInputStream in = new FileInputStream(inputFile)) {
+			return Histogram.count(in);
+		}
+		catch (IOException e) {
+			System.out.println("Error reading " + inputFile + ".");
+			System.exit(0);
+			return null;
+		}
+	}
 
-		// read until EOF
-		char c = 0;
-		try {
-			while ((c = in.readChar()) != -1) {
-				if (map.containsKey(c)) {
-					map.put(c, map.get(c).intValue() + 1);
-				}
-				else {
-					map.put(c, 1);
-				}
+	/*
+	 Returns the number of distinct characters in the frequency table.
+	*/
+	public static int distinct(long[] freq) {
+		int n = 0;
+		for (long f : freq) {
+			if (f > 0) {
+				n++;
 			}
-		}	
-		catch (NoSuchElementException e) {
-			//System.out.println("Processed through file.");
 		}
-		return map;
+		return n;
+	}
+
+	/*
+	 Returns the number of characters with a codeword in the code lengths.
+	*/
+	static int distinct(byte[] lengths) {
+		int n = 0;
+		for (byte l : lengths) {
+			if (l != 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/*
+	 Returns the total number of characters counted in the frequency table.
+	*/
+	public static long total(long[] freq) {
+		long count = 0;
+		for (long f : freq) {
+			count += f;
+		}
+		return count;
 	}
 
 	/*
@@ -249,36 +908,19 @@ public class HuffmanCompress implements Huffman {
 	}
 
 	/*
-	 Returns the character value of a binary number represented as a string.
+	 Returns the frequency table stored in the frequency file. The value
+	 at index c is the frequency of character c.
 	*/
-	public static char BinaryToChar(String bin) {
-		int l = bin.length();
-		int num = 0;
-		for (int i = 0; i < l; i++) {
-			if (bin.charAt(i) == '1') {
-				num += Math.pow(2, (l-1) - i);
-			}
-		}
-
-		return (char)num;
-	}
-
-	/*
-	 Returns a hashmap with keys corresponding to characters and the
-	 values corresponding to their frequencies as stored in the 
-	 frequency file. 
-	*/
-	public static HashMap<Character, Integer> getHashMap(String freqFile) {
-		HashMap<Character, Integer> map = new HashMap<Character, Integer>();
+	public static long[] readFreqFile(String freqFile) {
+		long[] freq = new long[ALPHABET_SIZE];
 		try {
 			FileInputStream in = new FileInputStream(new File(freqFile));
 			Scanner input = new Scanner(in);
 
 			while (input.hasNextLine()) {
 				String[] line = input.nextLine().split(":");
-				char c = BinaryToChar(line[0]);
-				int freq = Integer.parseInt(line[1]);
-				map.put(c, freq);
+				int c = Integer.parseInt(line[0], 2);
+				freq[c] = Long.parseLong(line[1]);
 			}
 
 			input.close();
@@ -288,33 +930,135 @@ public class HuffmanCompress implements Huffman {
 			System.exit(0);
 		}
 
-		return map;
+		return freq;
 	}
 
 	/*
-	 Create Huffman tree from hashmap. A priority queue is first created
-	 from the hashmap and then is used to make the huffman tree. The two
-	 minimum nodes are joined to make a 'litte tree' with the root node
-	 having frequency = sum of the child nodes' frequencies, and is 
-	 inserted back into the priority queue. This process is continued
-	 until no nodes remain in the priority queue. 
+	 Create Huffman tree from the frequency table. A priority queue is first
+	 created from the characters that occur and then is used to make the
+	 huffman tree. The two minimum nodes are joined to make a 'litte tree'
+	 with the root node having frequency = sum of the child nodes'
+	 frequencies, and is inserted back into the priority queue. This
+	 process is continued until no nodes remain in the priority queue. 
 	*/
-	public static Node buildTree(HashMap<Character, Integer> map) {
-		MinPQ pq = new MinPQ(map.size());
-		for (Character c : map.keySet()) {
-			pq.insert(new Node(c, map.get(c), null, null));
+	public static Node buildTree(long[] freq) {
+		Node root = huffmanTree(freq);
+
+		// the lookup table decoder needs every codeword to fit in an int;
+		// flatten very skewed trees by halving the frequencies
+		while (root != null && depth(root) > DecodeTable.MAX_CODE_LENGTH) {
+			long[] scaled = new long[freq.length];
+			for (int c = 0; c < freq.length; c++) {
+				if (freq[c] > 0) {
+					scaled[c] = Math.max(1, freq[c] / 2);
+				}
+			}
+			freq = scaled;
+			root = huffmanTree(freq);
+		}
+
+		return root;
+	}
+
+	/*
+	 Builds the Huffman tree using the priority queue.
+	 Returns null if no character occurs.
+	*/
+	private static Node huffmanTree(long[] freq) {
+		int n = 0;
+		for (long f : freq) {
+			if (f > 0) {
+				n++;
+			}
+		}
+		if (n == 0) {
+			return null;
+		}
+
+		// an int counter: a char would wrap around for 65,536 symbols
+		MinPQ pq = new MinPQ(n);
+		for (int c = 0; c < freq.length; c++) {
+			if (freq[c] > 0) {
+				pq.insert(new Node(c, freq[c], null, null));
+			}
 		}
 
 		while (pq.getSize() > 1) {
 			Node x = pq.getNode();
 			Node y = pq.getNode();
-			Node parent = new Node('\0', x.freq + y.freq, x, y);
+			Node parent = new Node(0, x.freq + y.freq, x, y);
 			pq.insert(parent);
 		}
 
 		return pq.getNode();
 	}
 
+	/*
+	 Returns the length of the longest path from the root to a leaf.
+	*/
+	public static int depth(Node root) {
+		if (root.isLeaf()) {
+			return 0;
+		}
+		return 1 + Math.max(depth(root.left), depth(root.right));
+	}
+
+	/*
+	 Returns the codeword length of each character in the Huffman
+	 tree built from the frequency table. A file with a single distinct
+	 character gets a 1 bit codeword so it can still be decoded.
+	*/
+	public static byte[] codeLengths(long[] freq) {
+		return codeLengths(freq, DecodeTable.MAX_CODE_LENGTH);
+	}
+
+	/*
+	 Returns code lengths of at most maxLength bits. These are the
+	 Huffman tree's own lengths when the tree is not deeper than
+	 maxLength, and the optimal length limited code otherwise (see
+	 PackageMerge).
+	*/
+	public static byte[] codeLengths(long[] freq, int maxLength) {
+		Node root = huffmanTree(freq);
+		if (root == null) {
+			return new byte[freq.length];
+		}
+		if (root.isLeaf() || depth(root) > maxLength) {
+			return PackageMerge.lengths(freq, maxLength);
+		}
+
+		return createCodewordTable(root, freq.length).lengths;
+	}
+
+	/*
+	 Returns maxLength, raised where needed so that every symbol which
+	 occurs in 'freq' fits: n symbols need codewords of up to
+	 ceil(log2(n)) bits. Only alphabets of more than 256 symbols can
+	 need more than the 8 bits setMaxCodeLength() allows.
+	*/
+	public static int lengthLimit(long[] freq, int maxLength) {
+		int n = distinct(freq);
+		int needed = (n <= 1) ? 1 : 32 - Integer.numberOfLeadingZeros(n - 1);
+		return Math.max(maxLength, needed);
+	}
+
+	/*
+	 Returns the number of bits needed to encode the frequency table
+	 with the (unlimited) Huffman tree, which is the sum of the
+	 frequencies of the internal nodes.
+	*/
+	public static long treeBits(long[] freq) {
+		Node root = huffmanTree(freq);
+		return (root == null) ? 0 : internalWeight(root);
+	}
+
+	private static long internalWeight(Node root) {
+		if (root.isLeaf()) {
+			return 0;
+		}
+		return root.freq + internalWeight(root.left) + internalWeight(root.right);
+	}
+
 	/*
 		In-order traversal and printing of tree.
 	*/
@@ -324,7 +1068,7 @@ public class HuffmanCompress implements Huffman {
 		}
 
 		if (root.isLeaf())
-			System.out.println(root.ch + ": " + root.freq);
+			System.out.println((char) root.ch + ": " + root.freq);
 
 		if (root.right != null) {
 			printTree(root.right);
@@ -333,51 +1077,58 @@ public class HuffmanCompress implements Huffman {
 
 	/*
 	 Building codeword table from the Huffman tree.
-	 This stores the huffman encodings for each character.
+	 This stores the huffman encoding of each character as an int
+	 together with its length, indexed by the character.
 	*/
-	public static HashMap<Character, String> createCodewordTable(Node root) {
-		HashMap<Character, String> map = new HashMap<Character, String>();
-		map = buildTable(map, root, "");
-
-		return map;
+	public static CodeTable createCodewordTable(Node root) {
+		return createCodewordTable(root, ALPHABET_SIZE);
 	}
 
 	/*
-	 Recursive method which traverses the tree in-order and
-	 gets the encodings for each character. A traversal down
-	 the left child adds a '0' while a traversal down the right
-	 child adds a '1'.
+	 Builds the codeword table for an alphabet of 'alphabetSize'
+	 symbols, such as the vocabulary of WordHuffman.
 	*/
-	public static HashMap<Character, String> buildTable(HashMap<Character, String> map, Node root, String s) {
-		if (root.left != null) {
-			buildTable(map, root.left, s + '0');
+	public static CodeTable createCodewordTable(Node root, int alphabetSize) {
+		int[] codes = new int[alphabetSize];
+		byte[] lengths = new byte[alphabetSize];
+		if (root != null) {
+			buildCodes(root, 0, 0, codes, lengths);
 		}
 
-		if (root.isLeaf()) {
-			map.put(root.ch, s);
-		}
+		return new CodeTable(codes, lengths);
+	}
 
-		if (root.right != null) {
-			buildTable(map, root.right, s + '1');
+	/*
+	 Recursive method which stores the codeword of each character
+	 as an int (the last 'length' bits of 'code') along with its
+	 length. A traversal down the left child adds a 0 bit while a
+	 traversal down the right child adds a 1 bit.
+	*/
+	public static void buildCodes(Node root, int code, int length, int[] codes, byte[] lengths) {
+		if (root.isLeaf()) {
+			codes[root.ch] = code;
+			lengths[root.ch] = (byte) length;
+			return;
 		}
 
-		return map;
+		buildCodes(root.left, code << 1, length + 1, codes, lengths);
+		buildCodes(root.right, (code << 1) | 1, length + 1, codes, lengths);
 	}
 
 	/*
 	 Class to store a node in the Huffman tree.
 	*/
-   	private static class Node implements Comparable<Node> {
-		private char ch;
-		private int freq;
+   	static class Node implements Comparable<Node> {
+		private int ch;			// symbol: a character or a larger alphabet's index
+		private long freq;
 		private final Node left;
 		private final Node right;
 
 		/*
 		 Constructor for Node class.
 		*/
-		Node(char character, int frequency, Node leftNode, Node rightNode) {
-			ch = character;
+		Node(int symbol, long frequency, Node leftNode, Node rightNode) {
+			ch = symbol;
 			freq = frequency;
 			left = leftNode;
 			right = rightNode;
@@ -399,7 +1150,7 @@ public class HuffmanCompress implements Huffman {
 		 If the return value = 0, the nodes have the same frequency.
 		*/
 		public int compareTo(Node otherNode) {
-			return (freq - otherNode.freq);
+			return Long.compare(freq, otherNode.freq);
 		}
    	}
 	
@@ -479,7 +1230,7 @@ public class HuffmanCompress implements Huffman {
 		*/
 		public void printQueue() {
 			for (int i = 1; i < getSize(); i++) {
-				System.out.println(at(i).ch + ": " + at(i).freq);
+				System.out.println((char) at(i).ch + ": " + at(i).freq);
 			}
 
 		}
@@ -497,7 +1248,7 @@ public class HuffmanCompress implements Huffman {
 		*/
 		public void printQueue_char() {
 			for (int i = 0; i < getSize(); i++)
-				System.out.println(at(i + 1).ch);
+				System.out.println((char) at(i + 1).ch);
 		}
 
 		/***
@@ -0,0 +1,135 @@
+/**
+ * 	@file	HuffmanInputStream.java
+ * 	@brief	Input stream which decompresses a block file as it is read.
+ *		Blocks are read and decoded one at a time, so only one
+ *		compressed and one decompressed block are held in memory.
+ *		The block index at the end of the file is not needed and
+ *		reading stops at the END marker.
+ */
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class HuffmanInputStream extends FilterInputStream {
+	private final DataInputStream data;
+	private byte[] block = new byte[0];
+	private int pos;
+	private boolean eof;
+
+	/*
+	 Constructor for the decompressing stream. Reads and checks the
+	 file header.
+	*/
+	public HuffmanInputStream(InputStream in) throws IOException {
+		super(in);
+		data = new DataInputStream(in);
+
+		int magic = data.readInt();
+		if (magic != (HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_BLOCKED)) {
+			throw new IOException("Not a compressed stream");
+		}
+		data.readInt();		// block size
+	}
+
+	public int read() throws IOException {
+		if (pos == block.length && !nextBlock()) {
+			return -1;
+		}
+		return block[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == block.length && !nextBlock()) {
+			return -1;
+		}
+
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && (pos < block.length || nextBlock())) {
+			int k = (int) Math.min(n - skipped, block.length - pos);
+			pos += k;
+			skipped += k;
+		}
+		return skipped;
+	}
+
+	public int available() {
+		return block.length - pos;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public void mark(int readlimit) {
+	}
+
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/*
+	 Reads and decodes the next block. Returns false at the END marker.
+	*/
+	private boolean nextBlock() throws IOException {
+		while (!eof) {
+			int kind = data.read();
+			if (kind < 0) {
+				throw new EOFException("Missing END marker");
+			}
+			if (kind == BlockCodec.END) {
+				eof = true;
+				break;
+			}
+
+			int length = data.readInt();
+			int size = data.readInt();
+			if (length < 0 || length > BlockCodec.MAX_BLOCK_SIZE || size < 0 || size > 2 * BlockCodec.MAX_BLOCK_SIZE) {
+				throw new IOException("Corrupt block header");
+			}
+
+			byte[] payload = new byte[size];
+			data.readFully(payload);
+			block = BlockCodec.decodePayload(kind, length, payload, 0, size);
+			pos = 0;
+			if (block.length > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 Decompresses the file named by the first command-line argument
+	 into the file named by the second argument, copying through
+	 the stream in small pieces.
+	*/
+	public static void main(String[] args) throws IOException {
+		try (InputStream in = new HuffmanInputStream(new FileInputStream(args[0]));
+		     OutputStream out = new FileOutputStream(args[1])) {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		}
+	}
+}
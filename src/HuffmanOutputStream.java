@@ -0,0 +1,171 @@
+/**
+ * 	@file	HuffmanOutputStream.java
+ * 	@brief	Output stream which compresses the bytes written to it.
+ *		Bytes are collected in a buffer of one block and every full
+ *		block is compressed with its own code lengths and written
+ *		to the underlying stream, so memory use does not depend on
+ *		how much is written and nothing is stored on disk.
+ *		The output is a block file (see BlockCodec), which can be read
+ *		back with HuffmanInputStream or HuffmanCompress.decode().
+ */
+
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class HuffmanOutputStream extends FilterOutputStream {
+	/* Default block size for streams */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 17;
+
+	private final byte[] block;
+	private final int maxLength;
+	private int pos;
+	private boolean closed;
+
+	private long written;		// compressed bytes written so far
+	private long raw;		// original bytes compressed so far
+	private long[] rawOffsets = new long[16];
+	private long[] fileOffsets = new long[16];
+	private int blocks;
+
+	/*
+	 Constructor using the default block size.
+	*/
+	public HuffmanOutputStream(OutputStream out) throws IOException {
+		this(out, DEFAULT_BLOCK_SIZE);
+	}
+
+	/*
+	 Constructor using the given block size and no limit on the
+	 codeword length beyond DecodeTable.MAX_CODE_LENGTH.
+	*/
+	public HuffmanOutputStream(OutputStream out, int blockSize) throws IOException {
+		this(out, blockSize, DecodeTable.MAX_CODE_LENGTH);
+	}
+
+	/*
+	 Constructor for the compressing stream with codewords of at most
+	 maxCodeLength bits. Writes the file header to the underlying stream.
+	*/
+	public HuffmanOutputStream(OutputStream out, int blockSize, int maxCodeLength) throws IOException {
+		super(out);
+		if (blockSize < BlockCodec.MIN_BLOCK_SIZE || blockSize > BlockCodec.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between " + BlockCodec.MIN_BLOCK_SIZE + " and " + BlockCodec.MAX_BLOCK_SIZE);
+		}
+		block = new byte[blockSize];
+		maxLength = maxCodeLength;
+
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_BLOCKED);
+		header.writeInt(blockSize);
+		written = 8;
+	}
+
+	public void write(int b) throws IOException {
+		ensureOpen();
+		block[pos++] = (byte) b;
+		if (pos == block.length) {
+			writeBlock();
+		}
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		while (len > 0) {
+			int n = Math.min(len, block.length - pos);
+			System.arraycopy(b, off, block, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+			if (pos == block.length) {
+				writeBlock();
+			}
+		}
+	}
+
+	/*
+	 Compresses the bytes buffered so far as a (short) block and
+	 flushes the underlying stream, so that everything written so far
+	 can be decompressed by the reader.
+	*/
+	public void flush() throws IOException {
+		ensureOpen();
+		writeBlock();
+		out.flush();
+	}
+
+	/*
+	 Writes the last block, the END marker and the block index,
+	 then closes the underlying stream.
+	*/
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			writeBlock();
+			DataOutputStream index = new DataOutputStream(out);
+			BlockCodec.writeIndex(index, written, rawOffsets, fileOffsets, blocks);
+			index.flush();
+		}
+		finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	/*
+	 Compresses and writes the buffered bytes, if there are any.
+	*/
+	private void writeBlock() throws IOException {
+		if (pos == 0) {
+			return;
+		}
+
+		byte[] compressed = BlockCodec.encodeBlock(block, 0, pos, maxLength);
+		out.write(compressed);
+
+		if (blocks == rawOffsets.length) {
+			rawOffsets = Arrays.copyOf(rawOffsets, 2 * blocks);
+			fileOffsets = Arrays.copyOf(fileOffsets, 2 * blocks);
+		}
+		rawOffsets[blocks] = raw;
+		fileOffsets[blocks] = written;
+		blocks++;
+
+		raw += pos;
+		written += compressed.length;
+		pos = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/*
+	 Compresses the file named by the first command-line argument
+	 into the file named by the second argument, copying through
+	 the stream in small pieces.
+	*/
+	public static void main(String[] args) throws IOException {
+		try (InputStream in = new FileInputStream(args[0]);
+		     OutputStream out = new HuffmanOutputStream(new FileOutputStream(args[1]))) {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		}
+	}
+}
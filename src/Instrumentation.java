@@ -0,0 +1,182 @@
+/**
+ * 	@file	Instrumentation.java
+ * 	@brief	Measures the phases of encode() and decode() (see
+ *		Metrics.Phase) and reports each one as a JDK Flight
+ *		Recorder event (huffman.Phase) and to the registered
+ *		Metrics. A phase is timed as:
+ *
+ *		Instrumentation.Timer timer = Instrumentation.begin(Phase.X);
+ *		...
+ *		Instrumentation.end(timer, bytesIn, bytesOut, symbols);
+ *
+ *		When no Metrics is registered and no recording has the
+ *		event enabled, begin() returns null after two field reads
+ *		and end() returns at once, so the instrumentation can stay
+ *		in production code. Tree depth and average code length are
+ *		only worked out for an enabled phase.
+ *
+ *		Record with: java -XX:StartFlightRecording:filename=huf.jfr ...
+ *		and view with: jfr print --events huffman.Phase huf.jfr
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+public final class Instrumentation {
+	private static final EventType EVENT_TYPE = EventType.getEventType(PhaseEvent.class);
+
+	private static volatile Metrics metrics = null;
+
+	private Instrumentation() {
+	}
+
+	/*
+	 Sends the measurements of every phase to 'receiver', or to none
+	 with null.
+	*/
+	public static void setMetrics(Metrics receiver) {
+		metrics = receiver;
+	}
+
+	/*
+	 Returns true if phases are measured: a Metrics is registered or
+	 a flight recording has the event enabled.
+	*/
+	public static boolean enabled() {
+		return metrics != null || EVENT_TYPE.isEnabled();
+	}
+
+	/*
+	 Starts timing a phase. Returns null when nothing is measured.
+	*/
+	public static Timer begin(Metrics.Phase phase) {
+		if (!enabled()) {
+			return null;
+		}
+		return new Timer(phase);
+	}
+
+	/*
+	 Ends a phase which read bytesIn bytes, wrote bytesOut bytes and
+	 handled 'symbols' characters.
+	*/
+	public static void end(Timer timer, long bytesIn, long bytesOut, long symbols) {
+		if (timer != null) {
+			timer.end(bytesIn, bytesOut, symbols, 0, 0);
+		}
+	}
+
+	/*
+	 Ends a phase which used 'table' for characters with the frequencies
+	 'freq', adding the longest codeword and the average code length.
+	*/
+	public static void end(Timer timer, long bytesIn, long bytesOut, long symbols, CodeTable table, long[] freq) {
+		if (timer != null) {
+			long count = 0;
+			long bits = 0;
+			for (int c = 0; c < freq.length; c++) {
+				count += freq[c];
+				bits += freq[c] * table.lengths[c];
+			}
+			double average = (count > 0) ? (double) bits / count : 0;
+			timer.end(bytesIn, bytesOut, symbols, table.maxLength(), average);
+		}
+	}
+
+	/*
+	 Ends a phase whose longest codeword and average code length are
+	 known without the frequencies, as when decoding.
+	*/
+	public static void end(Timer timer, long bytesIn, long bytesOut, long symbols, int treeDepth, double averageCodeLength) {
+		if (timer != null) {
+			timer.end(bytesIn, bytesOut, symbols, treeDepth, averageCodeLength);
+		}
+	}
+
+	/*
+	 A phase being timed.
+	*/
+	public static final class Timer {
+		private final Metrics.Phase phase;
+		private final PhaseEvent event;
+		private final long start;
+
+		private Timer(Metrics.Phase phase) {
+			this.phase = phase;
+			event = new PhaseEvent();
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		private void end(long bytesIn, long bytesOut, long symbols, int treeDepth, double averageCodeLength) {
+			long nanos = System.nanoTime() - start;
+			event.end();
+			if (event.shouldCommit()) {
+				event.phase = phase.name();
+				event.bytesIn = bytesIn;
+				event.bytesOut = bytesOut;
+				event.symbols = symbols;
+				event.treeDepth = treeDepth;
+				event.averageCodeLength = averageCodeLength;
+				event.commit();
+			}
+
+			Metrics receiver = metrics;
+			if (receiver != null) {
+				receiver.record(phase, nanos, bytesIn, bytesOut, symbols, treeDepth, averageCodeLength);
+			}
+		}
+	}
+
+	/*
+	 The flight recorder event of a phase.
+	*/
+	@Name("huffman.Phase")
+	@Label("Huffman Phase")
+	@Category({"Huffman"})
+	@Description("One phase of Huffman encoding or decoding")
+	@StackTrace(false)
+	static final class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+
+		@Label("Symbols")
+		long symbols;
+
+		@Label("Tree Depth")
+		int treeDepth;
+
+		@Label("Average Code Length")
+		@Description("Bits per character")
+		double averageCodeLength;
+	}
+
+	/*
+	 java Instrumentation <file>
+	 Encodes and decodes the file with a frequency file and prints the
+	 measurements of each phase.
+	*/
+	public static void main(String[] args) {
+		setMetrics((phase, nanos, bytesIn, bytesOut, symbols, treeDepth, averageCodeLength) ->
+			System.out.printf("%-15s %10.3f ms  in %10d  out %10d  symbols %10d  depth %2d  avg %.3f%n",
+				phase, nanos / 1e6, bytesIn, bytesOut, symbols, treeDepth, averageCodeLength));
+
+		HuffmanCompress huffman = new HuffmanCompress();
+		huffman.encode(args[0], args[0] + ".enc", args[0] + ".freq");
+		huffman.decode(args[0] + ".enc", args[0] + ".dec", args[0] + ".freq");
+	}
+}
@@ -0,0 +1,387 @@
+/**
+ * 	@file	Lz77.java
+ * 	@brief	LZ77 front end for the LZ77 block kind of BlockCodec, which
+ *		makes the block format a DEFLATE class codec. Repeated
+ *		strings are replaced by (length, distance) pairs pointing
+ *		back up to WINDOW bytes; literals, lengths and distances are
+ *		then coded with two canonical Huffman codes built from their
+ *		frequencies in the block, using the symbols and extra bits
+ *		of DEFLATE (RFC 1951):
+ *
+ *		literal/length code:	0-255 literal bytes, 257-285 match
+ *					lengths 3-258 (256 is not used)
+ *		distance code:		0-29, distances 1-32768
+ *
+ *		Matches are found with hash chains: the positions of every
+ *		3-byte string are linked by hash, newest first, and up to
+ *		'chain' of them are compared. The level (1-9) sets how long
+ *		the chains searched are, when a match is long enough to stop
+ *		searching, and whether matching is lazy (a match is dropped
+ *		when the next position has a longer one), as in zlib.
+ *
+ *		Payload: <literal/length code lengths><distance code lengths>
+ *		<bits>
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+public final class Lz77 {
+	public static final int WINDOW = 1 << 15;
+	public static final int MIN_MATCH = 3;
+	public static final int MAX_MATCH = 258;
+
+	public static final int LITERAL_SYMBOLS = 286;
+	public static final int DISTANCE_SYMBOLS = 30;
+	/* Longest codeword, as in DEFLATE, when setMaxCodeLength() allows more */
+	public static final int MAX_CODE_LENGTH = 15;
+
+	public static final int DEFAULT_LEVEL = 6;
+
+	/*
+	 Per level, as in zlib: chain length; nice length, which stops the
+	 search; lazy length, the longest match for which the next position
+	 is tried (0: no lazy matching); good length, from which that try
+	 searches a quarter of the chain.
+	*/
+	private static final int[] CHAIN = { 0, 4, 8, 32, 16, 32, 128, 256, 1024, 4096 };
+	private static final int[] NICE = { 0, 8, 16, 32, 16, 32, 128, 128, 258, 258 };
+	private static final int[] LAZY = { 0, 0, 0, 0, 4, 16, 16, 32, 128, 258 };
+	private static final int[] GOOD = { 0, 4, 4, 4, 4, 8, 8, 8, 32, 32 };
+
+	/* DEFLATE length and distance symbols: base value and extra bits */
+	private static final int[] LENGTH_BASE = {
+		3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+		35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = {
+		0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+		3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DISTANCE_BASE = {
+		1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+		257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DISTANCE_EXTRA = {
+		0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+		7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+
+	private static final int HASH_BITS = 15;
+
+	/* Compares 8 bytes at a time while extending a match */
+	private static final VarHandle LONG =
+		MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/* Symbol of every match length and of the first 512 distances */
+	private static final byte[] LENGTH_SYMBOL = new byte[MAX_MATCH + 1];
+	private static final byte[] DISTANCE_SYMBOL = new byte[512];
+
+	static {
+		for (int s = 0; s < LENGTH_BASE.length; s++) {
+			for (int len = LENGTH_BASE[s]; len < LENGTH_BASE[s] + (1 << LENGTH_EXTRA[s]) && len <= MAX_MATCH; len++) {
+				LENGTH_SYMBOL[len] = (byte) s;
+			}
+		}
+		LENGTH_SYMBOL[MAX_MATCH] = (byte) (LENGTH_BASE.length - 1);
+		for (int s = 0; s < 18; s++) {
+			for (int d = DISTANCE_BASE[s]; d < DISTANCE_BASE[s] + (1 << DISTANCE_EXTRA[s]) && d <= 512; d++) {
+				DISTANCE_SYMBOL[d - 1] = (byte) s;
+			}
+		}
+	}
+
+	private Lz77() {
+	}
+
+	private static int distanceSymbol(int distance) {
+		return (distance <= 512) ? DISTANCE_SYMBOL[distance - 1]
+			: 2 * (31 - Integer.numberOfLeadingZeros(distance - 1)) + (((distance - 1) >>> (30 - Integer.numberOfLeadingZeros(distance - 1))) & 1);
+	}
+
+	/*
+	 Writes the payload of src[offset..offset+length) to out, searching
+	 for matches with the effort of 'level' (1-9), with codewords of at
+	 most min(maxLength, MAX_CODE_LENGTH) bits, or of
+	 HuffmanCompress.lengthLimit() bits when more distinct symbols are
+	 used than that many bits can tell apart.
+	*/
+	public static void encode(byte[] src, int offset, int length, int level, int maxLength, DataOutputStream out) throws IOException {
+		if (level < 1 || level > 9) {
+			throw new IllegalArgumentException("Level must be between 1 and 9");
+		}
+
+		// tokens: a literal byte, or (length << 16) | (distance - 1)
+		int[] tokens = new int[length];
+		int n = parse(src, offset, length, level, tokens);
+
+		long[] literalFreq = new long[LITERAL_SYMBOLS];
+		long[] distanceFreq = new long[DISTANCE_SYMBOLS];
+		for (int i = 0; i < n; i++) {
+			int t = tokens[i];
+			if (t < 256) {
+				literalFreq[t]++;
+			}
+			else {
+				literalFreq[257 + LENGTH_SYMBOL[t >>> 16]]++;
+				distanceFreq[distanceSymbol((t & 0xffff) + 1)]++;
+			}
+		}
+		int limit = Math.min(maxLength, MAX_CODE_LENGTH);
+		CodeTable literals = CodeTable.canonical(HuffmanCompress.codeLengths(literalFreq, HuffmanCompress.lengthLimit(literalFreq, limit)));
+		CodeTable distances = CodeTable.canonical(HuffmanCompress.codeLengths(distanceFreq, HuffmanCompress.lengthLimit(distanceFreq, limit)));
+		literals.writeLengths(out);
+		distances.writeLengths(out);
+		out.flush();
+
+		BitWriter bits = new BitWriter(out, length / 3 + 64);
+		for (int i = 0; i < n; i++) {
+			int t = tokens[i];
+			if (t < 256) {
+				bits.write(literals.codes[t], literals.lengths[t]);
+				continue;
+			}
+			int len = t >>> 16;
+			int ls = LENGTH_SYMBOL[len];
+			bits.write(literals.codes[257 + ls], literals.lengths[257 + ls]);
+			bits.write(len - LENGTH_BASE[ls], LENGTH_EXTRA[ls]);
+
+			int distance = (t & 0xffff) + 1;
+			int ds = distanceSymbol(distance);
+			bits.write(distances.codes[ds], distances.lengths[ds]);
+			bits.write(distance - DISTANCE_BASE[ds], DISTANCE_EXTRA[ds]);
+		}
+		bits.flush();
+	}
+
+	/*
+	 Splits src[offset..offset+length) into literals and matches and
+	 returns their number.
+	*/
+	static int parse(byte[] src, int offset, int length, int level, int[] tokens) {
+		int maxChain = CHAIN[level];
+		int nice = NICE[level];
+		int lazy = LAZY[level];
+		int good = GOOD[level];
+
+		int[] head = new int[1 << HASH_BITS];
+		int[] prev = new int[WINDOW];
+		Arrays.fill(head, -1);
+
+		int end = offset + length;
+		int n = 0;
+		int i = offset;
+		int pendingLength = 0;		// lazy matching: match found at i - 1
+		int pendingDistance = 0;
+		while (i < end) {
+			int bestLength = 0;
+			int bestDistance = 0;
+			if (i + MIN_MATCH <= end) {
+				int h = hash(src, i);
+				int candidate = head[h];
+				prev[i & (WINDOW - 1)] = candidate;
+				head[h] = i;
+
+				int limit = Math.min(MAX_MATCH, end - i);
+				int wanted = Math.max(MIN_MATCH - 1, pendingLength);
+				int chain = (wanted >= limit) ? 0 : (pendingLength >= good) ? maxChain >> 2 : maxChain;
+				for (; candidate >= 0 && i - candidate <= WINDOW && chain > 0; chain--) {
+					if (src[candidate + wanted] == src[i + wanted] && src[candidate] == src[i]) {
+						int len = matchLength(src, candidate, i, limit);
+						if (len > wanted) {
+							bestLength = len;
+							bestDistance = i - candidate;
+							wanted = len;
+							if (len >= nice || len == limit) {
+								break;
+							}
+						}
+					}
+					int next = prev[candidate & (WINDOW - 1)];
+					if (next >= candidate) {
+						break;
+					}
+					candidate = next;
+				}
+			}
+
+			if (pendingLength > 0) {
+				if (bestLength > pendingLength) {
+					// the match one byte later is longer: keep the byte as a literal
+					tokens[n++] = src[i - 1] & 0xff;
+				}
+				else {
+					tokens[n++] = (pendingLength << 16) | (pendingDistance - 1);
+					i = insert(src, i + 1, i - 1 + pendingLength, end, head, prev);
+					pendingLength = 0;
+					continue;
+				}
+			}
+
+			if (bestLength >= MIN_MATCH) {
+				if (bestLength < lazy) {
+					pendingLength = bestLength;
+					pendingDistance = bestDistance;
+					i++;
+					continue;
+				}
+				tokens[n++] = (bestLength << 16) | (bestDistance - 1);
+				i = insert(src, i + 1, i + bestLength, end, head, prev);
+				pendingLength = 0;
+			}
+			else {
+				tokens[n++] = src[i++] & 0xff;
+				pendingLength = 0;
+			}
+		}
+		if (pendingLength > 0) {
+			tokens[n++] = (pendingLength << 16) | (pendingDistance - 1);
+		}
+		return n;
+	}
+
+	/*
+	 Adds the positions from..to-1 (inside a match) to the hash chains
+	 and returns 'to'.
+	*/
+	private static int insert(byte[] src, int from, int to, int end, int[] head, int[] prev) {
+		for (int j = from; j < to && j + MIN_MATCH <= end; j++) {
+			int h = hash(src, j);
+			prev[j & (WINDOW - 1)] = head[h];
+			head[h] = j;
+		}
+		return to;
+	}
+
+	/*
+	 Returns how many bytes (at most limit) from src[a] and src[b] are
+	 equal, where a < b.
+	*/
+	private static int matchLength(byte[] src, int a, int b, int limit) {
+		int len = 0;
+		while (len + 8 <= limit) {
+			long diff = (long) LONG.get(src, a + len) ^ (long) LONG.get(src, b + len);
+			if (diff != 0) {
+				return len + (Long.numberOfTrailingZeros(diff) >>> 3);
+			}
+			len += 8;
+		}
+		while (len < limit && src[a + len] == src[b + len]) {
+			len++;
+		}
+		return len;
+	}
+
+	/*
+	 Returns the hash chain of the MIN_MATCH bytes at src[i].
+	*/
+	private static int hash(byte[] src, int i) {
+		int x = ((src[i] & 0xff) << 16) | ((src[i + 1] & 0xff) << 8) | (src[i + 2] & 0xff);
+		return (x * 0x9e3779b1) >>> (32 - HASH_BITS);
+	}
+
+	/*
+	 Returns the original 'length' bytes of the payload in
+	 payload[offset..offset+size).
+	*/
+	public static byte[] decode(byte[] payload, int offset, int size, int length) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(payload, offset, size);
+		DataInputStream header = new DataInputStream(in);
+		DecodeTable literals = CodeTable.canonical(CodeTable.readLengths(header, LITERAL_SYMBOLS)).decodeTable();
+		DecodeTable distances = CodeTable.canonical(CodeTable.readLengths(header, DISTANCE_SYMBOLS)).decodeTable();
+		BitReader bits = new BitReader(payload, offset + size - in.available(), in.available());
+
+		byte[] dst = new byte[length];
+		int i = 0;
+		while (i < length) {
+			int s = literals.decodeSymbol(bits);
+			if (s < 256) {
+				dst[i++] = (byte) s;
+				continue;
+			}
+			if (s == 256 || s >= 257 + LENGTH_BASE.length) {
+				throw new IOException("Corrupt LZ77 block: literal/length symbol " + s);
+			}
+			s -= 257;
+			int len = LENGTH_BASE[s] + ((LENGTH_EXTRA[s] > 0) ? bits.read(LENGTH_EXTRA[s]) : 0);
+			int d = distances.decodeSymbol(bits);
+			int distance = DISTANCE_BASE[d] + ((DISTANCE_EXTRA[d] > 0) ? bits.read(DISTANCE_EXTRA[d]) : 0);
+			if (distance > i || len > length - i) {
+				throw new IOException("Corrupt LZ77 block: match outside the block");
+			}
+
+			// byte by byte: the match may overlap the bytes it produces
+			int from = i - distance;
+			if (distance >= len) {
+				System.arraycopy(dst, from, dst, i, len);
+			}
+			else {
+				for (int k = 0; k < len; k++) {
+					dst[i + k] = dst[from + k];
+				}
+			}
+			i += len;
+		}
+		return dst;
+	}
+
+	/*
+	 java Lz77 <file>...
+	 Compares LZ77 + Huffman blocks of 1 MiB with java.util.zip.Deflater
+	 on the whole file, at levels 1, 6 and 9.
+	*/
+	public static void main(String[] args) throws IOException {
+		int blockSize = 1 << 20;
+		for (String file : args) {
+			byte[] data = Files.readAllBytes(Paths.get(file));
+			System.out.printf("%s: %d bytes%n", file, data.length);
+			for (int level : new int[] { 1, 6, 9 }) {
+				long start = System.nanoTime();
+				long size = 0;
+				byte[][] blocks = new byte[(data.length + blockSize - 1) / blockSize][];
+				for (int b = 0; b < blocks.length; b++) {
+					int off = b * blockSize;
+					blocks[b] = BlockCodec.encodeBlock(data, off, Math.min(blockSize, data.length - off),
+						BlockCodec.Options.DEFAULT.withLevel(level));
+					size += blocks[b].length;
+				}
+				long encoded = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				boolean same = true;
+				for (int b = 0; b < blocks.length; b++) {
+					int off = b * blockSize;
+					ByteArrayInputStream in = new ByteArrayInputStream(blocks[b]);
+					DataInputStream header = new DataInputStream(in);
+					int kind = header.readUnsignedByte();
+					int n = header.readInt();
+					int payload = header.readInt();
+					byte[] block = BlockCodec.decodePayload(kind, n, blocks[b], BlockCodec.BLOCK_HEADER, payload);
+					same &= Arrays.equals(block, 0, n, data, off, off + n);
+				}
+				long decoded = System.nanoTime() - start;
+
+				Deflater deflater = new Deflater(level);
+				deflater.setInput(data);
+				deflater.finish();
+				byte[] buf = new byte[1 << 16];
+				long zipSize = 0;
+				start = System.nanoTime();
+				while (!deflater.finished()) {
+					zipSize += deflater.deflate(buf);
+				}
+				long zipTime = System.nanoTime() - start;
+				deflater.end();
+
+				System.out.printf("  level %d: LZ77 %10d bytes %6.1f MB/s (decode %6.1f MB/s)   Deflater %10d bytes %6.1f MB/s%s%n",
+					level, size, data.length * 1e3 / Math.max(encoded, 1), data.length * 1e3 / Math.max(decoded, 1),
+					zipSize, data.length * 1e3 / Math.max(zipTime, 1), same ? "" : "  MISMATCH");
+			}
+		}
+	}
+}
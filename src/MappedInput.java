@@ -0,0 +1,143 @@
+/**
+ * 	@file	MappedInput.java
+ * 	@brief	Input file for encoding, opened once and shared by both passes
+ *		(counting frequencies and writing codewords).
+ *		Large files are memory mapped with FileChannel.map in windows
+ *		of up to WINDOW bytes, so the second pass is served from the
+ *		page cache without another read through Java streams. Small
+ *		files are read into a single heap buffer instead, since
+ *		mapping costs more than reading them.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public final class MappedInput implements Closeable {
+	/* Largest mapped window (a MappedByteBuffer is indexed by int) */
+	public static final long WINDOW = 1L << 30;
+
+	/* Files smaller than this are read instead of mapped */
+	public static final long MAP_THRESHOLD = 1L << 20;
+
+	/* Files at least this large have their frequencies counted in parallel */
+	public static final long PARALLEL_THRESHOLD = 16L << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer[] windows;
+	private final long size;
+
+	/*
+	 Constructor which opens and maps (or reads) the file.
+	*/
+	public MappedInput(String inputFile) throws IOException {
+		channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+		try {
+			size = channel.size();
+			windows = (size < MAP_THRESHOLD) ? read() : map();
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 Returns the size of the file in bytes.
+	*/
+	public long size() {
+		return size;
+	}
+
+	/*
+	 Returns the windows of the file in order. Each call returns new
+	 buffer views so every pass starts at the beginning.
+	*/
+	public ByteBuffer[] windows() {
+		ByteBuffer[] views = new ByteBuffer[windows.length];
+		for (int i = 0; i < windows.length; i++) {
+			views[i] = windows[i].duplicate();
+		}
+		return views;
+	}
+
+	/*
+	 Returns the frequency of each byte value in the file.
+	 Large files are split into segments that are counted in parallel.
+	*/
+	public long[] histogram() {
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		for (ByteBuffer window : windows()) {
+			if (size >= PARALLEL_THRESHOLD) {
+				Histogram.parallelCount(window, freq);
+			}
+			else {
+				Histogram.count(window, freq);
+			}
+		}
+		return freq;
+	}
+
+	/*
+	 Writes the codeword of each byte of the file.
+	*/
+	public void encode(CodeTable table, BitWriter out) throws IOException {
+		for (ByteBuffer window : windows()) {
+			table.encode(window, out);
+		}
+	}
+
+	/*
+	 Encodes the file like encode(table, out) and stores in
+	 syncPoints[i] the bit position at which byte i * interval starts.
+	*/
+	public void encode(CodeTable table, BitWriter out, int interval, long[] syncPoints) throws IOException {
+		long position = 0;
+		for (ByteBuffer window : windows()) {
+			while (window.hasRemaining()) {
+				int into = (int) (position % interval);
+				if (into == 0) {
+					syncPoints[(int) (position / interval)] = out.bitCount();
+				}
+				int n = Math.min(window.remaining(), interval - into);
+				table.encode(window.slice(window.position(), n), out);
+				window.position(window.position() + n);
+				position += n;
+			}
+		}
+	}
+
+	/*
+	 Closes the file. Mapped windows are released by the garbage collector.
+	*/
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/*
+	 Reads the whole file into one heap buffer.
+	*/
+	private ByteBuffer[] read() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		while (buf.hasRemaining() && channel.read(buf) >= 0) {
+		}
+		buf.flip();
+		return new ByteBuffer[] { buf };
+	}
+
+	/*
+	 Maps the file in windows of WINDOW bytes.
+	*/
+	private ByteBuffer[] map() throws IOException {
+		int n = (int) ((size + WINDOW - 1) / WINDOW);
+		ByteBuffer[] maps = new ByteBuffer[n];
+		for (int i = 0; i < n; i++) {
+			long position = i * WINDOW;
+			maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+		}
+		return maps;
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * 	@file	Metrics.java
+ * 	@brief	Receiver for the per phase measurements of encoding and
+ *		decoding, to bridge them to a metrics registry. Register
+ *		one with Instrumentation.setMetrics(); it is called once
+ *		per phase, on the thread that ran the phase, so it has to
+ *		be thread safe when several files are coded at once.
+ */
+
+public interface Metrics {
+	/* Phases of encode() and decode() */
+	enum Phase {
+		READ,			// opening and mapping (or reading) the input
+		HISTOGRAM,		// counting the characters
+		FREQ_FILE,		// writing the frequency file
+		READ_FREQ_FILE,		// reading the frequency file
+		BUILD_TREE,		// Huffman tree and codeword table (or the cached table)
+		ENCODE,			// writing the codewords
+		DECODE			// decoding the codewords
+	}
+
+	/*
+	 Records one phase which took 'nanos' nanoseconds. 'symbols' is the
+	 number of characters counted, coded or decoded, or for BUILD_TREE
+	 the number of distinct characters. treeDepth (the longest
+	 codeword) and averageCodeLength (bits per character) are 0 for
+	 the phases before the tree is built.
+	*/
+	void record(Phase phase, long nanos, long bytesIn, long bytesOut, long symbols, int treeDepth, double averageCodeLength);
+}
@@ -0,0 +1,225 @@
+/**
+ * 	@file	MultiSymbolTable.java
+ * 	@brief	Lookup table decoder which decodes several characters per
+ *		lookup. The table is indexed by the next TABLE_BITS bits and
+ *		each entry holds every complete codeword that fits in them
+ *		(up to MAX_SYMBOLS characters) along with the total number
+ *		of bits they use. With text averaging 4-5 bits a character,
+ *		most lookups produce two or three characters.
+ *
+ *		Entry:	(characters << 8) | (count << 6) | bits
+ *		with the first character in the lowest byte of 'characters'.
+ *		A count of 0 means the first codeword is longer than
+ *		TABLE_BITS; that character is decoded by a DecodeTable.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+public final class MultiSymbolTable {
+	/* Number of bits resolved by one lookup */
+	public static final int TABLE_BITS = 12;
+
+	/* Most characters stored in one entry */
+	public static final int MAX_SYMBOLS = 3;
+
+	private static final int CHUNK = 1 << 16;
+	private static final VarHandle INT =
+		MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG =
+		MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final int[] table = new int[1 << TABLE_BITS];
+	private final DecodeTable single;
+
+	/*
+	 Constructor for the table. codes and lengths describe the code as
+	 for DecodeTable, which decodes the codewords longer than TABLE_BITS.
+	*/
+	public MultiSymbolTable(int[] codes, byte[] lengths, DecodeTable longCodes) {
+		single = longCodes;
+
+		// first character of every TABLE_BITS window: (symbol << 8) | length
+		int[] first = new int[1 << TABLE_BITS];
+		for (int s = 0; s < lengths.length; s++) {
+			int len = lengths[s];
+			if (len > 0 && len <= TABLE_BITS) {
+				int start = codes[s] << (TABLE_BITS - len);
+				int end = start + (1 << (TABLE_BITS - len));
+				for (int j = start; j < end; j++) {
+					first[j] = (s << 8) | len;
+				}
+			}
+		}
+
+		int mask = (1 << TABLE_BITS) - 1;
+		for (int w = 0; w < table.length; w++) {
+			int used = 0;
+			int count = 0;
+			int chars = 0;
+			while (count < MAX_SYMBOLS) {
+				int e = first[(w << used) & mask];
+				int len = e & 0xff;
+				if (len == 0 || used + len > TABLE_BITS) {
+					break;
+				}
+				chars |= (e >>> 8) << (8 * count);
+				used += len;
+				count++;
+			}
+			table[w] = (chars << 8) | (count << 6) | used;
+		}
+	}
+
+	/*
+	 Decodes 'length' byte symbols into dst starting at 'offset'.
+	*/
+	public void decode(BitReader in, byte[] dst, int offset, int length) throws IOException {
+		int i = offset;
+		int end = offset + length;
+
+		// an entry is stored as a 4 byte write, so stop 4 bytes early
+		while (end - i >= 4) {
+			in.refill();
+
+			// a refill leaves at least 57 bits, enough for 4 lookups
+			for (int k = 0; k < 4 && end - i >= 4; k++) {
+				int e = table[in.peek(TABLE_BITS)];
+				int count = (e >>> 6) & 3;
+				if (count == 0) {
+					dst[i++] = (byte) single.decodeSymbol(in);
+					break;
+				}
+				INT.set(dst, i, e >>> 8);
+				in.consume(e & 0x3f);
+				i += count;
+			}
+		}
+
+		while (i < end) {
+			dst[i++] = (byte) single.decodeSymbol(in);
+		}
+	}
+
+	/*
+	 Decodes four interleaved streams into dst. Stream k is stored in
+	 src[start[k]..start[k]+size[k]) and holds the bytes from
+	 dst[offset + k * segment] on, each stream 'segment' bytes long
+	 except maybe the last one, which ends at offset + length.
+
+	 The four streams are advanced in the same loop with their bits in
+	 local variables: their lookups do not depend on each other, so the
+	 CPU can work on them at the same time. Each stream is refilled
+	 with one 8 byte read; the last bytes of a stream and of its part
+	 of dst are decoded through a BitReader.
+	*/
+	public void decode4(byte[] src, int[] start, int[] size, byte[] dst, int offset, int segment, int length) throws IOException {
+		int[] out = new int[4];
+		int[] pos = new int[4];
+		int[] end = new int[4];
+		for (int k = 0; k < 4; k++) {
+			out[k] = offset + k * segment;
+			pos[k] = start[k];
+			end[k] = (k < 3) ? out[k] + segment : offset + length;
+		}
+		int[] count = new int[4];
+
+		// a round decodes up to 4 entries of each stream: at most 4 refills
+		// of 7 bytes plus one 8 byte read, and 12 bytes written plus 4
+		int o0 = out[0], o1 = out[1], o2 = out[2], o3 = out[3];
+		int p0 = pos[0], p1 = pos[1], p2 = pos[2], p3 = pos[3];
+		long b0 = 0, b1 = 0, b2 = 0, b3 = 0;		// bits, left aligned
+		int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+		int in0 = start[0] + size[0] - 40, in1 = start[1] + size[1] - 40;
+		int in2 = start[2] + size[2] - 40, in3 = start[3] + size[3] - 40;
+		int out0 = end[0] - 16, out1 = end[1] - 16, out2 = end[2] - 16, out3 = end[3] - 16;
+
+		while (p0 <= in0 && p1 <= in1 && p2 <= in2 && p3 <= in3
+				&& o0 <= out0 && o1 <= out1 && o2 <= out2 && o3 <= out3) {
+			for (int r = 0; r < 4; r++) {
+				b0 |= (long) LONG.get(src, p0) >>> c0;
+				p0 += (63 - c0) >>> 3;
+				c0 |= 56;
+				b1 |= (long) LONG.get(src, p1) >>> c1;
+				p1 += (63 - c1) >>> 3;
+				c1 |= 56;
+				b2 |= (long) LONG.get(src, p2) >>> c2;
+				p2 += (63 - c2) >>> 3;
+				c2 |= 56;
+				b3 |= (long) LONG.get(src, p3) >>> c3;
+				p3 += (63 - c3) >>> 3;
+				c3 |= 56;
+
+				int e0 = table[(int) (b0 >>> (64 - TABLE_BITS))];
+				int e1 = table[(int) (b1 >>> (64 - TABLE_BITS))];
+				int e2 = table[(int) (b2 >>> (64 - TABLE_BITS))];
+				int e3 = table[(int) (b3 >>> (64 - TABLE_BITS))];
+				if (((e0 & 0xc0) == 0) | ((e1 & 0xc0) == 0) | ((e2 & 0xc0) == 0) | ((e3 & 0xc0) == 0)) {
+					// a code longer than TABLE_BITS in one of the streams
+					e0 = entry(e0, b0);
+					e1 = entry(e1, b1);
+					e2 = entry(e2, b2);
+					e3 = entry(e3, b3);
+				}
+
+				INT.set(dst, o0, e0 >>> 8);
+				INT.set(dst, o1, e1 >>> 8);
+				INT.set(dst, o2, e2 >>> 8);
+				INT.set(dst, o3, e3 >>> 8);
+				o0 += (e0 >>> 6) & 3;
+				o1 += (e1 >>> 6) & 3;
+				o2 += (e2 >>> 6) & 3;
+				o3 += (e3 >>> 6) & 3;
+				b0 <<= e0 & 0x3f;
+				b1 <<= e1 & 0x3f;
+				b2 <<= e2 & 0x3f;
+				b3 <<= e3 & 0x3f;
+				c0 -= e0 & 0x3f;
+				c1 -= e1 & 0x3f;
+				c2 -= e2 & 0x3f;
+				c3 -= e3 & 0x3f;
+			}
+		}
+		out[0] = o0; out[1] = o1; out[2] = o2; out[3] = o3;
+		pos[0] = p0; pos[1] = p1; pos[2] = p2; pos[3] = p3;
+		count[0] = c0; count[1] = c1; count[2] = c2; count[3] = c3;
+
+		for (int k = 0; k < 4; k++) {
+			// the unread bits start count[k] bits before pos[k]
+			int bit = 8 * (pos[k] - start[k]) - count[k];
+			BitReader in = new BitReader(src, start[k] + bit / 8, size[k] - bit / 8);
+			if (bit % 8 > 0) {
+				in.read(bit % 8);
+			}
+			decode(in, dst, out[k], end[k] - out[k]);
+		}
+	}
+
+	/*
+	 Returns the entry for a lookup which may be a code longer than
+	 TABLE_BITS, as an entry holding that one character.
+	*/
+	private int entry(int e, long window) {
+		if ((e & 0xc0) != 0) {
+			return e;
+		}
+		int x = single.lookup(window);
+		return ((x >>> 8) << 8) | (1 << 6) | (x & 0xff);
+	}
+
+	/*
+	 Decodes 'count' byte symbols and writes them to out.
+	*/
+	public void decode(BitReader in, OutputStream out, long count) throws IOException {
+		byte[] buf = new byte[(int) Math.min(CHUNK, Math.max(count, 1))];
+		while (count > 0) {
+			int n = (int) Math.min(count, buf.length);
+			decode(in, buf, 0, n);
+			out.write(buf, 0, n);
+			count -= n;
+		}
+	}
+}
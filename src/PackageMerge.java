@@ -0,0 +1,157 @@
+/**
+ * 	@file	PackageMerge.java
+ * 	@brief	Length limited Huffman codes using the package-merge algorithm.
+ *		Finds the code lengths with the smallest encoded size among
+ *		all codes whose codewords are at most maxLength bits, for
+ *		when the plain Huffman tree is too deep for a fixed size
+ *		decode table.
+ *
+ *		Every character is a coin of its frequency at each of the
+ *		levels 1..maxLength. Starting at the deepest level, the
+ *		coins are paired into packages, which are merged (by weight)
+ *		with the coins of the next level up. Taking the 2n - 2
+ *		cheapest items of the top level, the code length of a
+ *		character is the number of its coins taken, counting the
+ *		coins inside the packages taken.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class PackageMerge {
+	private PackageMerge() {
+	}
+
+	/*
+	 Returns optimal code lengths of at most maxLength bits for the
+	 frequency table. A single character gets a 1 bit codeword.
+	*/
+	public static byte[] lengths(long[] freq, int maxLength) {
+		byte[] lengths = new byte[freq.length];
+
+		// characters that occur, by increasing frequency
+		int n = 0;
+		long[] keys = new long[freq.length];
+		for (int c = 0; c < freq.length; c++) {
+			if (freq[c] > 0) {
+				n++;
+			}
+		}
+		Integer[] order = new Integer[n];
+		n = 0;
+		for (int c = 0; c < freq.length; c++) {
+			if (freq[c] > 0) {
+				order[n++] = c;
+			}
+		}
+		Arrays.sort(order, (a, b) -> (freq[a] != freq[b]) ? Long.compare(freq[a], freq[b]) : Integer.compare(a, b));
+
+		if (n == 0) {
+			return lengths;
+		}
+		if (n == 1) {
+			lengths[order[0]] = 1;
+			return lengths;
+		}
+		if (maxLength < 1 || maxLength > DecodeTable.MAX_CODE_LENGTH || n > (1L << maxLength)) {
+			throw new IllegalArgumentException(n + " characters do not fit in codewords of " + maxLength + " bits");
+		}
+
+		for (int i = 0; i < n; i++) {
+			keys[i] = freq[order[i]];
+		}
+
+		// level 0 is the deepest level (codeword length maxLength)
+		long[][] weight = new long[maxLength][];
+		boolean[][] isPackage = new boolean[maxLength][];
+		weight[0] = Arrays.copyOf(keys, n);
+		isPackage[0] = new boolean[n];
+
+		for (int level = 1; level < maxLength; level++) {
+			long[] below = weight[level - 1];
+			int packages = below.length / 2;
+			weight[level] = new long[n + packages];
+			isPackage[level] = new boolean[n + packages];
+
+			// merge the coins with the packages of the level below
+			int i = 0;
+			int p = 0;
+			for (int k = 0; k < n + packages; k++) {
+				long packageWeight = (p < packages) ? below[2 * p] + below[2 * p + 1] : Long.MAX_VALUE;
+				if (i < n && keys[i] <= packageWeight) {
+					weight[level][k] = keys[i++];
+				}
+				else {
+					weight[level][k] = packageWeight;
+					isPackage[level][k] = true;
+					p++;
+				}
+			}
+		}
+
+		// the items taken from each level are a prefix of that level; the
+		// coins among them are taken in order of increasing frequency
+		int take = 2 * n - 2;
+		for (int level = maxLength - 1; level >= 0; level--) {
+			int coins = 0;
+			int packages = 0;
+			for (int k = 0; k < take; k++) {
+				if (isPackage[level][k]) {
+					packages++;
+				}
+				else {
+					lengths[order[coins++]]++;
+				}
+			}
+			take = 2 * packages;
+		}
+
+		return lengths;
+	}
+
+	/*
+	 Returns the number of bits needed to encode the frequency table
+	 with the given code lengths.
+	*/
+	public static long encodedBits(long[] freq, byte[] lengths) {
+		long bits = 0;
+		for (int c = 0; c < freq.length; c++) {
+			bits += freq[c] * lengths[c];
+		}
+		return bits;
+	}
+
+	/*
+	 Returns how much larger the output gets by limiting the codewords
+	 to maxLength bits, as a fraction of the size with the unlimited
+	 Huffman tree (0.01 = 1% larger). Headers are not counted.
+	*/
+	public static double cost(long[] freq, int maxLength) {
+		long optimal = HuffmanCompress.treeBits(freq);
+		long limited = encodedBits(freq, HuffmanCompress.codeLengths(freq, maxLength));
+		return (optimal == 0) ? 0 : (double) (limited - optimal) / optimal;
+	}
+
+	/*
+	 Reports the cost of limiting the code lengths of the file named by
+	 the first argument to each of the following arguments (11, 12 and
+	 15 bits by default).
+	*/
+	public static void main(String[] args) throws IOException {
+		byte[] data = Files.readAllBytes(Paths.get(args[0]));
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		Histogram.count(data, 0, data.length, freq);
+
+		System.out.printf("%s: Huffman tree %d bits in total%n", args[0], HuffmanCompress.treeBits(freq));
+
+		String[] limits = (args.length > 1) ? Arrays.copyOfRange(args, 1, args.length) : new String[] { "11", "12", "15" };
+		for (String limit : limits) {
+			int maxLength = Integer.parseInt(limit);
+			byte[] lengths = HuffmanCompress.codeLengths(freq, maxLength);
+			System.out.printf("  max %2d bits: %d bits in total, %+.4f%%%n",
+				maxLength, encodedBits(freq, lengths), 100 * cost(freq, maxLength));
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * 	@file	SharedTable.java
+ * 	@brief	Code table trained on a sample corpus and shared by many
+ *		small files, such as JSON or log records of a few KiB.
+ *		Such a file needs no frequency pass, no tree and no code
+ *		lengths of its own: the compressed file only stores the ID
+ *		of the table. Every byte gets a codeword (counts start at 1)
+ *		so any input can be encoded with any table.
+ *
+ *		Tables are saved as <directory>/<id>.htab, with the ID in
+ *		hex. The ID is the CRC-32 of the code lengths, so the same
+ *		training data always gives the same ID. Loaded tables are
+ *		kept in memory and reused by every decode.
+ *
+ *		Table file:	<TABLE_MAGIC><id><code lengths>
+ *		Record:		<magic + format><id><character count><bits>
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+public final class SharedTable {
+	/* Table files start with "HTab" */
+	public static final int TABLE_MAGIC = 0x48546162;
+	public static final String SUFFIX = ".htab";
+
+	/* Size of <magic + format><id><character count> */
+	public static final int RECORD_HEADER = 16;
+
+	/* Codewords are kept short: the table also has to fit unusual files */
+	public static final int MAX_CODE_LENGTH = 15;
+
+	/* Directory searched by HuffmanCompress.decode() for unknown IDs */
+	public static final String DIRECTORY = System.getProperty("huffman.tables", "tables");
+
+	private static final ConcurrentHashMap<Integer, SharedTable> LOADED = new ConcurrentHashMap<>();
+
+	private final int id;
+	private final CodeTable table;
+
+	/*
+	 Constructor for a table with the given code lengths. The decode
+	 tables are built here so the table can be shared between threads.
+	*/
+	private SharedTable(byte[] lengths) {
+		CRC32 crc = new CRC32();
+		crc.update(lengths);
+		id = (int) crc.getValue();
+		table = CodeTable.canonical(lengths);
+		table.decodeTable();
+		table.multiSymbolTable();
+	}
+
+	/*
+	 Returns a table trained on the given sample files.
+	*/
+	public static SharedTable train(String[] sampleFiles) throws IOException {
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		for (String file : sampleFiles) {
+			try (FileInputStream in = new FileInputStream(file)) {
+				long[] sample = Histogram.count(in);
+				for (int c = 0; c < freq.length; c++) {
+					freq[c] += sample[c];
+				}
+			}
+		}
+		return train(freq);
+	}
+
+	/*
+	 Returns a table trained on the combined frequencies of a corpus.
+	*/
+	public static SharedTable train(long[] freq) {
+		long[] counts = new long[HuffmanCompress.ALPHABET_SIZE];
+		for (int c = 0; c < counts.length; c++) {
+			counts[c] = freq[c] + 1;
+		}
+		return new SharedTable(HuffmanCompress.codeLengths(counts, MAX_CODE_LENGTH));
+	}
+
+	/*
+	 Returns the ID stored in the files encoded with this table.
+	*/
+	public int id() {
+		return id;
+	}
+
+	/*
+	 Saves the table in 'directory' and makes it available to decode().
+	 Returns the name of the table file.
+	*/
+	public String save(String directory) throws IOException {
+		Files.createDirectories(Paths.get(directory));
+		String name = fileName(directory, id);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name)))) {
+			out.writeInt(TABLE_MAGIC);
+			out.writeInt(id);
+			table.writeLengths(out);
+		}
+		LOADED.putIfAbsent(id, this);
+		return name;
+	}
+
+	/*
+	 Returns the table with the given ID. It is read from 'directory'
+	 the first time and kept in memory after that.
+	*/
+	public static SharedTable load(String directory, int id) throws IOException {
+		SharedTable shared = LOADED.get(id);
+		if (shared != null) {
+			return shared;
+		}
+
+		String name = fileName(directory, id);
+		if (!new File(name).exists()) {
+			throw new IOException("No code table " + String.format("%08x", id) + " in " + directory);
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)))) {
+			if (in.readInt() != TABLE_MAGIC || in.readInt() != id) {
+				throw new IOException(name + " is not code table " + String.format("%08x", id));
+			}
+			shared = new SharedTable(CodeTable.readLengths(in, HuffmanCompress.ALPHABET_SIZE));
+		}
+		if (shared.id != id) {
+			throw new IOException("Corrupt code table " + name);
+		}
+
+		SharedTable previous = LOADED.putIfAbsent(id, shared);
+		return (previous != null) ? previous : shared;
+	}
+
+	private static String fileName(String directory, int id) {
+		return directory + File.separator + String.format("%08x", id) + SUFFIX;
+	}
+
+	/*
+	 Compresses src[offset..offset+length) into a record.
+	*/
+	public byte[] encode(byte[] src, int offset, int length) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(RECORD_HEADER + length);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_SHARED);
+		out.writeInt(id);
+		out.writeLong(length);
+
+		BitWriter bits = new BitWriter(buf, length / 2 + 64);
+		table.encode(src, offset, length, bits);
+		bits.flush();
+		return buf.toByteArray();
+	}
+
+	/*
+	 Returns the original bytes of a record encoded with any table in
+	 'directory'.
+	*/
+	public static byte[] decode(byte[] record, String directory) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		if (in.readInt() != (HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_SHARED)) {
+			throw new IOException("Not a shared table record");
+		}
+		SharedTable shared = load(directory, in.readInt());
+		long count = in.readLong();
+		if (count < 0 || count > Integer.MAX_VALUE - 8) {
+			throw new IOException("Corrupt record length");
+		}
+
+		byte[] dst = new byte[(int) count];
+		shared.table.decode(new BitReader(record, RECORD_HEADER, record.length - RECORD_HEADER), dst, 0, dst.length);
+		return dst;
+	}
+
+	/*
+	 java SharedTable <directory> <sample file>...
+	 Trains a table on the sample files, saves it in the directory and
+	 prints its ID along with the size of the samples when encoded
+	 with it and with per-file canonical codes.
+	*/
+	public static void main(String[] args) throws IOException {
+		String[] samples = Arrays.copyOfRange(args, 1, args.length);
+		SharedTable shared = train(samples);
+		String name = shared.save(args[0]);
+		System.out.printf("table %08x saved to %s%n", shared.id, name);
+
+		long original = 0;
+		long sharedSize = 0;
+		long canonicalSize = 0;
+		for (String file : samples) {
+			byte[] data = Files.readAllBytes(Paths.get(file));
+			original += data.length;
+			sharedSize += shared.encode(data, 0, data.length).length;
+
+			long[] freq = new long[HuffmanCompress.ALPHABET_SIZE];
+			Histogram.count(data, 0, data.length, freq);
+			byte[] lengths = HuffmanCompress.codeLengths(freq);
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			CodeTable.canonical(lengths).writeLengths(new DataOutputStream(header));
+			canonicalSize += 12 + header.size() + (PackageMerge.encodedBits(freq, lengths) + 7) / 8;
+		}
+		System.out.printf("%d files, %d bytes: shared table %d bytes, per-file canonical %d bytes%n",
+			samples.length, original, sharedSize, canonicalSize);
+	}
+}
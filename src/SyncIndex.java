@@ -0,0 +1,140 @@
+/**
+ * 	@file	SyncIndex.java
+ * 	@brief	Sync points of a file in the canonical format, stored in a
+ *		sidecar file next to it (<compressed file>.idx). Sync point i
+ *		is the bit position in the compressed data at which original
+ *		byte i * interval starts, so a range can be decoded starting
+ *		from the nearest sync point before it instead of from the
+ *		first bit.
+ *
+ *		The sidecar records the length of the compressed file and a
+ *		CRC-32 of its character count and code lengths. An index
+ *		which does not match the file next to it (left over from an
+ *		earlier file of the same name) is not used.
+ *
+ *		File format:
+ *		<SYNC_MAGIC><compressed length><header CRC><interval>
+ *		<offset of the bits in the compressed file><count><bit position>*
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public final class SyncIndex {
+	/* Sidecar files start with "HSy2" */
+	public static final int SYNC_MAGIC = 0x48537932;
+
+	/* Appended to the compressed file name */
+	public static final String SUFFIX = ".idx";
+
+	/* Default distance between sync points: 64 KiB */
+	public static final int DEFAULT_INTERVAL = 1 << 16;
+
+	final long compressedLength;	// length of the compressed file
+	final int headerCrc;		// see headerCrc()
+	final int interval;		// original bytes between sync points
+	final long dataOffset;		// file offset of the first bit
+	final long[] bitOffsets;	// bit position of sync point i
+
+	/*
+	 Constructor for the sync points of a compressed file of 'length'
+	 bytes whose header has the CRC 'crc'.
+	*/
+	SyncIndex(long length, int crc, int syncInterval, long offset, long[] bits) {
+		compressedLength = length;
+		headerCrc = crc;
+		interval = syncInterval;
+		dataOffset = offset;
+		bitOffsets = bits;
+	}
+
+	/*
+	 Returns the CRC-32 of the character count and the code lengths as
+	 written in the header of the canonical format.
+	*/
+	static int headerCrc(long count, CodeTable table) throws IOException {
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(OutputStream.nullOutputStream(), crc));
+		out.writeLong(count);
+		table.writeLengths(out);
+		return (int) crc.getValue();
+	}
+
+	/*
+	 Returns the number of sync points needed for 'size' original bytes.
+	*/
+	static int count(long size, int interval) {
+		return (int) ((size + interval - 1) / interval);
+	}
+
+	/*
+	 Writes the sidecar file of the compressed file 'compressedFile'.
+	*/
+	public void write(String compressedFile) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compressedFile + SUFFIX)))) {
+			out.writeInt(SYNC_MAGIC);
+			out.writeLong(compressedLength);
+			out.writeInt(headerCrc);
+			out.writeInt(interval);
+			out.writeLong(dataOffset);
+			out.writeInt(bitOffsets.length);
+			for (long bit : bitOffsets) {
+				out.writeLong(bit);
+			}
+		}
+	}
+
+	/*
+	 Reads the sidecar file of the compressed file 'compressedFile'.
+	*/
+	public static SyncIndex read(String compressedFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(compressedFile + SUFFIX)))) {
+			if (in.readInt() != SYNC_MAGIC) {
+				throw new IOException("Not a sync index");
+			}
+			long length = in.readLong();
+			int crc = in.readInt();
+			int interval = in.readInt();
+			long offset = in.readLong();
+			int count = in.readInt();
+			if (interval <= 0 || offset < 0 || count < 0) {
+				throw new IOException("Corrupt sync index");
+			}
+
+			long[] bits = new long[count];
+			for (int i = 0; i < count; i++) {
+				bits[i] = in.readLong();
+			}
+			return new SyncIndex(length, crc, interval, offset, bits);
+		}
+	}
+
+	/*
+	 Returns the sync points of 'compressedFile', a file of 'length'
+	 bytes whose header has the CRC 'crc', or null if it has no sidecar
+	 or the sidecar does not belong to it (or cannot be read).
+	*/
+	public static SyncIndex find(String compressedFile, long length, int crc) {
+		if (!new File(compressedFile + SUFFIX).exists()) {
+			return null;
+		}
+		try {
+			SyncIndex index = read(compressedFile);
+			boolean matches = index.compressedLength == length && index.headerCrc == crc
+				&& index.bitOffsets.length > 0 && index.dataOffset < length;
+			return matches ? index : null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+}
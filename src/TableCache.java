@@ -0,0 +1,196 @@
+/**
+ * 	@file	TableCache.java
+ * 	@brief	Bounded cache of ready-made code tables for a long running
+ *		process which encodes and decodes many files with the same
+ *		statistics. An entry is keyed by a fingerprint of the code
+ *		lengths, or of the frequency table (with the length limit)
+ *		it was built from, and holds the codewords. The decode table
+ *		and multi-symbol table are built on the first decode which
+ *		needs them (see CodeTable) and kept with the entry, so a
+ *		repeated table costs one hash lookup instead of building a
+ *		tree and two lookup tables. An encoder whose frequencies
+ *		are new looks the table up again by its code lengths, so an
+ *		encoder and a decoder with the same lengths share one
+ *		table. Block files (BlockCodec and ContextTables) do not
+ *		use the cache when encoding or decoding, as every block has
+ *		its own histogram.
+ *
+ *		The least recently used entry is evicted when the cache is
+ *		full. Keys keep a copy of their array and are compared in
+ *		full, so two tables with the same fingerprint never mix.
+ *		Entries are never changed after they are added apart from
+ *		their lookup tables, which CodeTable builds under its own
+ *		lock, so they can be shared between threads.
+ */
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class TableCache {
+	/* Entries kept by the shared cache (about 30 KB each) */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final TableCache SHARED = new TableCache(DEFAULT_CAPACITY);
+
+	/* Kinds of key */
+	private static final int LENGTHS = 0;		// canonical code from code lengths
+	private static final int FREQUENCIES = 1;	// canonical code from a frequency table and length limit
+	private static final int TREE = 2;		// codewords of the Huffman tree (legacy format)
+
+	private final LinkedHashMap<Key, CodeTable> tables;
+	private long hits;
+	private long misses;
+
+	/*
+	 Constructor for a cache holding at most 'capacity' tables.
+	*/
+	public TableCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		tables = new LinkedHashMap<Key, CodeTable>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, CodeTable> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/*
+	 Returns the cache used by HuffmanCompress.
+	*/
+	public static TableCache shared() {
+		return SHARED;
+	}
+
+	/*
+	 Returns the canonical code for the given code lengths.
+	*/
+	public CodeTable canonical(byte[] lengths) {
+		Key key = new Key(LENGTHS, 0, lengths.clone(), null);
+		CodeTable table = get(key);
+		return (table != null) ? table : put(key, CodeTable.canonical(lengths));
+	}
+
+	/*
+	 Returns the canonical code for a frequency table, with codewords
+	 of at most maxLength bits. A repeated table and limit is found
+	 without building the tree. Otherwise the code lengths are worked
+	 out and the table is looked up by them, so files whose counts
+	 differ but whose lengths are the same share a table.
+	*/
+	public CodeTable forFrequencies(long[] freq, int maxLength) {
+		Key key = new Key(FREQUENCIES, maxLength, null, freq.clone());
+		CodeTable table = get(key);
+		return (table != null) ? table : put(key, canonical(HuffmanCompress.codeLengths(freq, maxLength)));
+	}
+
+	/*
+	 Returns the codewords of the Huffman tree built from a frequency
+	 table, as used by the legacy format with a frequency file.
+	*/
+	public CodeTable forTree(long[] freq) {
+		Key key = new Key(TREE, 0, null, freq.clone());
+		CodeTable table = get(key);
+		return (table != null) ? table : put(key, HuffmanCompress.createCodewordTable(HuffmanCompress.buildTree(freq)));
+	}
+
+	/*
+	 Number of lookups that found a table.
+	*/
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/*
+	 Number of lookups that had to build a table.
+	*/
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return tables.size();
+	}
+
+	/*
+	 Removes every table and resets the counters.
+	*/
+	public synchronized void clear() {
+		tables.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d tables, %d hits, %d misses", tables.size(), hits, misses);
+	}
+
+	private synchronized CodeTable get(Key key) {
+		CodeTable table = tables.get(key);
+		if (table != null) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return table;
+	}
+
+	/*
+	 Adds a new entry, unless another thread added the same key in the
+	 meantime.
+	*/
+	private synchronized CodeTable put(Key key, CodeTable table) {
+		CodeTable previous = tables.putIfAbsent(key, table);
+		return (previous != null) ? previous : table;
+	}
+
+	/*
+	 Cache key: the kind of table, the length limit and the array it is
+	 built from, hashed once into a 64-bit fingerprint.
+	*/
+	private static final class Key {
+		private final int kind;
+		private final int maxLength;
+		private final byte[] lengths;
+		private final long[] freq;
+		private final long fingerprint;
+
+		Key(int tableKind, int limit, byte[] lengthArray, long[] freqArray) {
+			kind = tableKind;
+			maxLength = limit;
+			lengths = lengthArray;
+			freq = freqArray;
+
+			long h = 0x9e3779b97f4a7c15L * (kind * 64 + maxLength + 1);
+			if (lengths != null) {
+				for (byte l : lengths) {
+					h = (h ^ l) * 0x100000001b3L;
+				}
+			}
+			else {
+				for (long f : freq) {
+					h = (h ^ f) * 0x100000001b3L;
+					h ^= h >>> 29;
+				}
+			}
+			fingerprint = h;
+		}
+
+		public int hashCode() {
+			return (int) (fingerprint ^ (fingerprint >>> 32));
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return fingerprint == k.fingerprint && kind == k.kind && maxLength == k.maxLength
+				&& Arrays.equals(lengths, k.lengths) && Arrays.equals(freq, k.freq);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * 	@file	WideAlphabet.java
+ * 	@brief	Huffman coding over alphabets wider than a byte, so each
+ *		codeword stands for up to two bytes of input:
+ *
+ *		PAIRS	every two bytes form one 16-bit symbol (65,536
+ *			symbols). Suits UTF-16 text and binary data made of
+ *			16-bit fields.
+ *		DIGRAMS	the 256 bytes plus up to MAX_DIGRAMS byte pairs
+ *			chosen for each file by how often they occur. The
+ *			input is split greedily from left to right: a pair
+ *			in the set is one symbol, any other byte is coded
+ *			on its own.
+ *
+ *		The code lengths are written in the sparse format of
+ *		CodeTable.writeSparseLengths(), since most of the 65,536
+ *		pairs usually do not occur.
+ *
+ *		File format:
+ *		<magic + format><mode><original length><mode header>
+ *		<code lengths><bits>
+ *		PAIRS header:	<last byte of an odd length input, else 0>
+ *		DIGRAMS header:	<number of digrams><digram (2 bytes)>*
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class WideAlphabet {
+	/* Alphabet modes */
+	public static final int BYTES = 0;
+	public static final int PAIRS = 1;
+	public static final int DIGRAMS = 2;
+
+	public static final int PAIR_SYMBOLS = 1 << 16;
+
+	/* Most byte pairs added to the byte alphabet by DIGRAMS */
+	public static final int MAX_DIGRAMS = 1024;
+
+	/* A pair has to occur this often to get a symbol of its own */
+	public static final int MIN_DIGRAM_COUNT = 8;
+
+	private WideAlphabet() {
+	}
+
+	/*
+	 Compresses src[offset..offset+length) with the PAIRS or DIGRAMS
+	 alphabet and codewords of at most maxLength bits, or of
+	 HuffmanCompress.lengthLimit() bits when more symbols occur than
+	 maxLength bits can tell apart.
+	*/
+	public static byte[] encode(byte[] src, int offset, int length, int mode, int maxLength) throws IOException {
+		if (mode != PAIRS && mode != DIGRAMS) {
+			throw new IllegalArgumentException("Unknown alphabet mode " + mode);
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 2 + 1024);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_WIDE);
+		out.writeByte(mode);
+		out.writeLong(length);
+
+		if (mode == PAIRS) {
+			int pairs = length / 2;
+			long[] freq = new long[PAIR_SYMBOLS];
+			for (int i = offset; i < offset + 2 * pairs; i += 2) {
+				freq[((src[i] & 0xff) << 8) | (src[i + 1] & 0xff)]++;
+			}
+			out.writeByte((length % 2 == 1) ? src[offset + length - 1] : 0);
+
+			CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, HuffmanCompress.lengthLimit(freq, maxLength)));
+			table.writeSparseLengths(out);
+			out.flush();
+
+			BitWriter bits = new BitWriter(buf, length / 2 + 64);
+			table.encodePairs(src, offset, pairs, bits);
+			bits.flush();
+			return buf.toByteArray();
+		}
+
+		int[] digrams = chooseDigrams(src, offset, length);
+		out.writeShort(digrams.length);
+		for (int d : digrams) {
+			out.writeShort(d);
+		}
+
+		// symbol of each pair in the set, 0 for the others
+		int[] symbolOf = new int[PAIR_SYMBOLS];
+		for (int k = 0; k < digrams.length; k++) {
+			symbolOf[digrams[k]] = HuffmanCompress.ALPHABET_SIZE + k;
+		}
+
+		int[] symbols = new int[length];
+		int n = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; ) {
+			int s = (i + 1 < end) ? symbolOf[((src[i] & 0xff) << 8) | (src[i + 1] & 0xff)] : 0;
+			if (s != 0) {
+				symbols[n++] = s;
+				i += 2;
+			}
+			else {
+				symbols[n++] = src[i++] & 0xff;
+			}
+		}
+
+		long[] freq = new long[HuffmanCompress.ALPHABET_SIZE + digrams.length];
+		for (int i = 0; i < n; i++) {
+			freq[symbols[i]]++;
+		}
+		CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, HuffmanCompress.lengthLimit(freq, maxLength)));
+		table.writeSparseLengths(out);
+		out.flush();
+
+		BitWriter bits = new BitWriter(buf, length / 2 + 64);
+		table.encode(symbols, 0, n, bits);
+		bits.flush();
+		return buf.toByteArray();
+	}
+
+	/*
+	 Returns up to MAX_DIGRAMS byte pairs (first byte in the high 8
+	 bits) which occur at least MIN_DIGRAM_COUNT times, most frequent
+	 first. Overlapping pairs are all counted, so the counts are an
+	 upper bound of how often the greedy split uses them.
+	*/
+	static int[] chooseDigrams(byte[] src, int offset, int length) {
+		int[] count = new int[PAIR_SYMBOLS];
+		for (int i = offset; i + 1 < offset + length; i++) {
+			count[((src[i] & 0xff) << 8) | (src[i + 1] & 0xff)]++;
+		}
+
+		long[] ranked = new long[PAIR_SYMBOLS];
+		int n = 0;
+		for (int p = 0; p < PAIR_SYMBOLS; p++) {
+			if (count[p] >= MIN_DIGRAM_COUNT) {
+				ranked[n++] = ((long) count[p] << 16) | p;
+			}
+		}
+		Arrays.sort(ranked, 0, n);
+
+		int[] digrams = new int[Math.min(n, MAX_DIGRAMS)];
+		for (int k = 0; k < digrams.length; k++) {
+			digrams[k] = (int) (ranked[n - 1 - k] & 0xffff);
+		}
+		return digrams;
+	}
+
+	/*
+	 Returns the original bytes of data[offset..offset+size), a file
+	 written by encode().
+	*/
+	public static byte[] decode(byte[] data, int offset, int size) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(data, offset, size);
+		DataInputStream header = new DataInputStream(in);
+		if (header.readInt() != (HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_WIDE)) {
+			throw new IOException("Not a wide alphabet file");
+		}
+		int mode = header.readUnsignedByte();
+		long count = header.readLong();
+		if (count < 0 || count > Integer.MAX_VALUE - 8) {
+			throw new IOException("Corrupt original length");
+		}
+		byte[] dst = new byte[(int) count];
+
+		if (mode == PAIRS) {
+			byte last = header.readByte();
+			DecodeTable table = CodeTable.canonical(CodeTable.readSparseLengths(header, PAIR_SYMBOLS)).decodeTable();
+			BitReader bits = new BitReader(data, offset + size - in.available(), in.available());
+			int end = dst.length & ~1;
+			table.decodePairs(bits, dst, 0, end / 2);
+			if (end < dst.length) {
+				dst[end] = last;
+			}
+			return dst;
+		}
+		if (mode != DIGRAMS) {
+			throw new IOException("Unknown alphabet mode " + mode);
+		}
+
+		int[] digrams = new int[header.readUnsignedShort()];
+		if (digrams.length > MAX_DIGRAMS) {
+			throw new IOException("Corrupt digram table");
+		}
+		for (int k = 0; k < digrams.length; k++) {
+			digrams[k] = header.readUnsignedShort();
+		}
+		DecodeTable table = CodeTable.canonical(
+			CodeTable.readSparseLengths(header, HuffmanCompress.ALPHABET_SIZE + digrams.length)).decodeTable();
+		BitReader bits = new BitReader(data, offset + size - in.available(), in.available());
+
+		int i = 0;
+		while (i < dst.length) {
+			int s = table.decodeSymbol(bits);
+			if (s < HuffmanCompress.ALPHABET_SIZE) {
+				dst[i++] = (byte) s;
+			}
+			else if (i + 1 < dst.length) {
+				int d = digrams[s - HuffmanCompress.ALPHABET_SIZE];
+				dst[i++] = (byte) (d >>> 8);
+				dst[i++] = (byte) d;
+			}
+			else {
+				throw new IOException("Corrupt data: digram past the end");
+			}
+		}
+		return dst;
+	}
+
+	/*
+	 java WideAlphabet <file>...
+	 Prints the size of each file coded with bytes, pairs and digrams
+	 as symbols, with the encode and decode speeds.
+	*/
+	public static void main(String[] args) throws IOException {
+		for (String file : args) {
+			byte[] data = Files.readAllBytes(Paths.get(file));
+			System.out.printf("%s: %d bytes%n", file, data.length);
+			for (int mode = BYTES; mode <= DIGRAMS; mode++) {
+				long start = System.nanoTime();
+				byte[] coded = (mode == BYTES)
+					? HuffmanCompress.encodeCanonical(data, 0, data.length, DecodeTable.MAX_CODE_LENGTH)
+					: encode(data, 0, data.length, mode, DecodeTable.MAX_CODE_LENGTH);
+				long encoded = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				byte[] decoded = (mode == BYTES)
+					? decodeCanonical(coded)
+					: decode(coded, 0, coded.length);
+				long decodedTime = System.nanoTime() - start;
+
+				System.out.printf("  %-8s %10d bytes  encode %6.1f MB/s  decode %6.1f MB/s%s%n",
+					new String[] { "bytes", "pairs", "digrams" }[mode], coded.length,
+					data.length * 1e3 / Math.max(encoded, 1), data.length * 1e3 / Math.max(decodedTime, 1),
+					Arrays.equals(data, decoded) ? "" : "  MISMATCH");
+			}
+		}
+	}
+
+	/*
+	 Decodes an in-memory canonical file, for comparison in main().
+	*/
+	private static byte[] decodeCanonical(byte[] coded) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(coded));
+		int format = in.readInt() & 0xff;
+		if (format == HuffmanCompress.FORMAT_STORED) {
+			return Arrays.copyOfRange(coded, 4, coded.length);
+		}
+		byte[] dst = new byte[(int) in.readLong()];
+		CodeTable table = CodeTable.canonical(CodeTable.readLengths(in, HuffmanCompress.ALPHABET_SIZE));
+		int header = coded.length - in.available();
+		table.decode(new BitReader(coded, header, coded.length - header), dst, 0, dst.length);
+		return dst;
+	}
+}
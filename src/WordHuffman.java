@@ -0,0 +1,359 @@
+/**
+ * 	@file	WordHuffman.java
+ * 	@brief	Word based Huffman coding for natural language text. The
+ *		input is split into tokens: words (runs of letters, digits
+ *		and bytes >= 0x80, so UTF-8 letters stay in their word) and
+ *		the runs of spaces and punctuation between them. Each token
+ *		that occurs at least MIN_COUNT times gets a codeword of its
+ *		own, so a common word costs a few bits and one decode step.
+ *		Rarer tokens are coded as ESCAPE followed by their bytes in
+ *		a second, byte level code which ends each token with
+ *		END_OF_TOKEN.
+ *
+ *		The vocabulary is stored sorted, each token as the length
+ *		of the prefix it shares with the previous one and the rest
+ *		of its bytes (front coding).
+ *
+ *		File format:
+ *		<magic + format><original length><vocabulary size>
+ *		<(shared prefix length, suffix length, suffix bytes)*>
+ *		<token code lengths><byte code lengths><bits>
+ *		Token symbol 0 is ESCAPE, symbol i > 0 is vocabulary entry
+ *		i - 1.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public final class WordHuffman {
+	/* Tokens seen fewer times are escaped instead of added to the vocabulary */
+	public static final int MIN_COUNT = 2;
+
+	/* Longer runs are split into several tokens */
+	public static final int MAX_TOKEN_LENGTH = 255;
+
+	public static final int ESCAPE = 0;
+	public static final int END_OF_TOKEN = HuffmanCompress.ALPHABET_SIZE;
+
+	/* Byte classes: true for the bytes that make up words */
+	private static final boolean[] WORD = new boolean[HuffmanCompress.ALPHABET_SIZE];
+
+	static {
+		for (int c = 0; c < WORD.length; c++) {
+			WORD[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= 0x80;
+		}
+	}
+
+	private WordHuffman() {
+	}
+
+	/*
+	 Returns the length of the token starting at src[i], which ends
+	 before 'end'.
+	*/
+	static int tokenLength(byte[] src, int i, int end) {
+		boolean word = WORD[src[i] & 0xff];
+		int j = i + 1;
+		int limit = Math.min(end, i + MAX_TOKEN_LENGTH);
+		while (j < limit && WORD[src[j] & 0xff] == word) {
+			j++;
+		}
+		return j - i;
+	}
+
+	/*
+	 Compresses src[offset..offset+length) with codewords of at most
+	 maxLength bits, or of HuffmanCompress.lengthLimit() bits for a
+	 code with more symbols than maxLength bits can tell apart.
+	*/
+	public static byte[] encode(byte[] src, int offset, int length, int maxLength) throws IOException {
+		// split into tokens, numbered in order of their first occurrence;
+		// token id is src[first[id]..first[id]+size[id]), found through an
+		// open addressing table of id + 1 by the hash of its bytes
+		int[] slots = new int[1 << 12];
+		int[] first = new int[1024];
+		int[] size = new int[1024];
+		int[] count = new int[1024];
+		int[] tokens = new int[Math.max(16, length / 4)];
+		int distinct = 0;
+		int n = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; ) {
+			int len = tokenLength(src, i, end);
+			int h = hash(src, i, len);
+			int slot = h & (slots.length - 1);
+			int id;
+			while (true) {
+				id = slots[slot] - 1;
+				if (id < 0) {
+					id = distinct++;
+					if (id == first.length) {
+						first = Arrays.copyOf(first, 2 * id);
+						size = Arrays.copyOf(size, 2 * id);
+						count = Arrays.copyOf(count, 2 * id);
+					}
+					first[id] = i;
+					size[id] = len;
+					slots[slot] = id + 1;
+					if (2 * distinct > slots.length) {
+						slots = rehash(src, first, size, distinct, 2 * slots.length);
+					}
+					break;
+				}
+				if (size[id] == len && Arrays.equals(src, first[id], first[id] + len, src, i, i + len)) {
+					break;
+				}
+				slot = (slot + 1) & (slots.length - 1);
+			}
+			count[id]++;
+			if (n == tokens.length) {
+				tokens = Arrays.copyOf(tokens, 2 * n);
+			}
+			tokens[n++] = id;
+			i += len;
+		}
+
+		// vocabulary: the ids of the frequent tokens, sorted by their bytes
+		int[] vocabulary = new int[distinct];
+		int words = 0;
+		for (int id = 0; id < distinct; id++) {
+			if (count[id] >= MIN_COUNT) {
+				vocabulary[words++] = id;
+			}
+		}
+		vocabulary = Arrays.copyOf(vocabulary, words);
+		sort(src, first, size, vocabulary);
+
+		int[] symbolOf = new int[distinct];
+		for (int w = 0; w < words; w++) {
+			symbolOf[vocabulary[w]] = w + 1;
+		}
+
+		long[] freq = new long[words + 1];
+		long[] byteFreq = new long[HuffmanCompress.ALPHABET_SIZE + 1];
+		for (int id = 0; id < distinct; id++) {
+			freq[symbolOf[id]] += count[id];
+			if (symbolOf[id] == ESCAPE) {
+				for (int k = first[id]; k < first[id] + size[id]; k++) {
+					byteFreq[src[k] & 0xff]++;
+				}
+				byteFreq[END_OF_TOKEN]++;
+			}
+		}
+		// the vocabulary and the 257 byte symbols may not fit in maxLength bits
+		CodeTable table = CodeTable.canonical(HuffmanCompress.codeLengths(freq, HuffmanCompress.lengthLimit(freq, maxLength)));
+		CodeTable bytes = CodeTable.canonical(HuffmanCompress.codeLengths(byteFreq, HuffmanCompress.lengthLimit(byteFreq, maxLength)));
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 3 + 1024);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_WORDS);
+		out.writeLong(length);
+		writeVocabulary(out, src, first, size, vocabulary);
+		table.writeLengths(out);
+		bytes.writeLengths(out);
+		out.flush();
+
+		BitWriter bits = new BitWriter(buf, length / 3 + 64);
+		for (int t = 0; t < n; t++) {
+			int s = symbolOf[tokens[t]];
+			bits.write(table.codes[s], table.lengths[s]);
+			if (s == ESCAPE) {
+				int id = tokens[t];
+				for (int k = first[id]; k < first[id] + size[id]; k++) {
+					int c = src[k] & 0xff;
+					bits.write(bytes.codes[c], bytes.lengths[c]);
+				}
+				bits.write(bytes.codes[END_OF_TOKEN], bytes.lengths[END_OF_TOKEN]);
+			}
+		}
+		bits.flush();
+		return buf.toByteArray();
+	}
+
+	private static int hash(byte[] src, int offset, int length) {
+		int h = length;
+		for (int k = offset; k < offset + length; k++) {
+			h = 31 * h + src[k];
+		}
+		// mix every bit into the low bits used as the slot: short tokens
+		// have nearby sums, which would fill one long run of slots
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	/*
+	 Returns a table of 'capacity' slots holding the first 'distinct'
+	 tokens.
+	*/
+	private static int[] rehash(byte[] src, int[] first, int[] size, int distinct, int capacity) {
+		int[] slots = new int[capacity];
+		for (int id = 0; id < distinct; id++) {
+			int slot = hash(src, first[id], size[id]) & (capacity - 1);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			slots[slot] = id + 1;
+		}
+		return slots;
+	}
+
+	/*
+	 Sorts token ids by their bytes, compared unsigned, with a merge
+	 sort over the int ids so no token is copied.
+	*/
+	private static void sort(byte[] src, int[] first, int[] size, int[] ids) {
+		int[] a = ids;
+		int[] b = new int[ids.length];
+		for (int width = 1; width < ids.length; width *= 2) {
+			for (int lo = 0; lo < ids.length; lo += 2 * width) {
+				int mid = Math.min(lo + width, ids.length);
+				int hi = Math.min(lo + 2 * width, ids.length);
+				int i = lo;
+				int j = mid;
+				for (int k = lo; k < hi; k++) {
+					if (j == hi || (i < mid && compare(src, first, size, a[i], a[j]) <= 0)) {
+						b[k] = a[i++];
+					}
+					else {
+						b[k] = a[j++];
+					}
+				}
+			}
+			int[] t = a;
+			a = b;
+			b = t;
+		}
+		if (a != ids) {
+			System.arraycopy(a, 0, ids, 0, ids.length);
+		}
+	}
+
+	private static int compare(byte[] src, int[] first, int[] size, int x, int y) {
+		return Arrays.compareUnsigned(src, first[x], first[x] + size[x], src, first[y], first[y] + size[y]);
+	}
+
+	/*
+	 Writes the vocabulary, token ids in sorted order, with front
+	 coding.
+	*/
+	private static void writeVocabulary(DataOutputStream out, byte[] src, int[] first, int[] size, int[] vocabulary) throws IOException {
+		out.writeInt(vocabulary.length);
+		int previous = -1;
+		for (int id : vocabulary) {
+			int shared = 0;
+			if (previous >= 0) {
+				shared = Arrays.mismatch(src, first[previous], first[previous] + size[previous], src, first[id], first[id] + size[id]);
+				if (shared < 0) {
+					shared = size[id];
+				}
+			}
+			out.writeByte(shared);
+			out.writeByte(size[id] - shared);
+			out.write(src, first[id] + shared, size[id] - shared);
+			previous = id;
+		}
+	}
+
+	/*
+	 Returns the original bytes of data[offset..offset+size), a file
+	 written by encode().
+	*/
+	public static byte[] decode(byte[] data, int offset, int size) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(data, offset, size);
+		DataInputStream header = new DataInputStream(in);
+		if (header.readInt() != (HuffmanCompress.MAGIC | HuffmanCompress.FORMAT_WORDS)) {
+			throw new IOException("Not a word coded file");
+		}
+		long length = header.readLong();
+		int words = header.readInt();
+		if (length < 0 || length > Integer.MAX_VALUE - 8 || words < 0 || words > size) {
+			throw new IOException("Corrupt word coded file");
+		}
+
+		// vocabulary entry w is text[start[w]..start[w+1])
+		int[] start = new int[words + 2];
+		byte[] text = new byte[Math.max(64, size)];
+		int used = 0;
+		int previous = 0;
+		for (int w = 1; w <= words; w++) {
+			int shared = header.readUnsignedByte();
+			int suffix = header.readUnsignedByte();
+			if (shared > used - previous || shared + suffix > MAX_TOKEN_LENGTH) {
+				throw new IOException("Corrupt vocabulary");
+			}
+			if (used + shared + suffix > text.length) {
+				text = Arrays.copyOf(text, 2 * text.length + shared + suffix);
+			}
+			System.arraycopy(text, previous, text, used, shared);
+			header.readFully(text, used + shared, suffix);
+			previous = used;
+			start[w] = used;
+			used += shared + suffix;
+		}
+		start[words + 1] = used;
+
+		DecodeTable table = CodeTable.canonical(CodeTable.readLengths(header, words + 1)).decodeTable();
+		DecodeTable bytes = CodeTable.canonical(CodeTable.readLengths(header, HuffmanCompress.ALPHABET_SIZE + 1)).decodeTable();
+		BitReader bits = new BitReader(data, offset + size - in.available(), in.available());
+
+		byte[] dst = new byte[(int) length];
+		int i = 0;
+		while (i < dst.length) {
+			int s = table.decodeSymbol(bits);
+			if (s != ESCAPE) {
+				int from = start[s];
+				int n = start[s + 1] - from;
+				if (n > dst.length - i) {
+					throw new IOException("Corrupt data: token past the end");
+				}
+				for (int k = 0; k < n; k++) {
+					dst[i + k] = text[from + k];
+				}
+				i += n;
+				continue;
+			}
+
+			for (int c = bytes.decodeSymbol(bits); c != END_OF_TOKEN; c = bytes.decodeSymbol(bits)) {
+				if (i == dst.length) {
+					throw new IOException("Corrupt data: token past the end");
+				}
+				dst[i++] = (byte) c;
+			}
+		}
+		return dst;
+	}
+
+	/*
+	 java WordHuffman <file>...
+	 Prints the size of each file coded with words and with bytes as
+	 symbols, the vocabulary size and the decode speeds.
+	*/
+	public static void main(String[] args) throws IOException {
+		for (String file : args) {
+			byte[] data = Files.readAllBytes(Paths.get(file));
+			byte[] bytes = HuffmanCompress.encodeCanonical(data, 0, data.length, DecodeTable.MAX_CODE_LENGTH);
+
+			long start = System.nanoTime();
+			byte[] words = encode(data, 0, data.length, DecodeTable.MAX_CODE_LENGTH);
+			long encoded = System.nanoTime() - start;
+			start = System.nanoTime();
+			byte[] decoded = decode(words, 0, words.length);
+			long decodedTime = System.nanoTime() - start;
+
+			System.out.printf("%s: %d bytes, bytes %d, words %d (vocabulary %d), encode %.1f MB/s, decode %.1f MB/s%s%n",
+				file, data.length, bytes.length, words.length, ByteBuffer.wrap(words).getInt(12),
+				data.length * 1e3 / Math.max(encoded, 1), data.length * 1e3 / Math.max(decodedTime, 1),
+				Arrays.equals(data, decoded) ? "" : "  MISMATCH");
+		}
+	}
+}
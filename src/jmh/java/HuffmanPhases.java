@@ -0,0 +1,129 @@
+/**
+ * 	@file	HuffmanPhases.java
+ * 	@brief	The phases of HuffmanCompress measured by
+ *		bench.HuffmanBenchmark, set up over one input: readFile()
+ *		(counting), buildTree(), createCodewordTable(), the encode
+ *		loop and the decode loop. JMH only runs benchmarks in a
+ *		named package, and code in a named package cannot name the
+ *		classes of src/, so the benchmark loads this class by name
+ *		and calls each phase through a Callable.
+ *
+ *		Inputs are text (alice30.txt) and binary (ur.jpg) repeated
+ *		to the size, a highly skewed distribution and uniform random
+ *		bytes. The generated ones use a fixed seed so every run sees
+ *		the same data.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+public final class HuffmanPhases implements Function<String, Callable<Object>>, AutoCloseable {
+	private final Path file;
+	private final byte[] data;
+	private final long[] freq;
+	private final HuffmanCompress.Node root;
+	private final CodeTable table;
+	private final byte[] encoded;
+	private final byte[] decoded;
+
+	/*
+	 Constructor for the phases over 'size' bytes of the named kind of
+	 input, which is also written to a temporary file for readFile().
+	*/
+	public HuffmanPhases(String input, int size) throws IOException {
+		data = generate(input, size);
+		file = Files.createTempFile("huffbench-" + input, ".bin");
+		Files.write(file, data);
+
+		freq = new long[HuffmanCompress.ALPHABET_SIZE];
+		Histogram.count(data, 0, data.length, freq);
+		root = HuffmanCompress.buildTree(freq);
+		table = HuffmanCompress.createCodewordTable(root);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size / 2 + 64);
+		encode(out);
+		encoded = out.toByteArray();
+		decoded = new byte[size];
+	}
+
+	/*
+	 Returns the named phase. Each call of the Callable runs the phase
+	 once and returns its result.
+	*/
+	public Callable<Object> apply(String phase) {
+		switch (phase) {
+			case "readFile":
+				return () -> HuffmanCompress.readFile(file.toString());
+			case "buildTree":
+				return () -> HuffmanCompress.buildTree(freq);
+			case "createCodewordTable":
+				return () -> HuffmanCompress.createCodewordTable(root);
+			case "encode":
+				return () -> encode(OutputStream.nullOutputStream());
+			case "decode":
+				return () -> {
+					table.decode(new BitReader(encoded, 0, encoded.length), decoded, 0, decoded.length);
+					return decoded;
+				};
+			default:
+				throw new IllegalArgumentException("Unknown phase " + phase);
+		}
+	}
+
+	/*
+	 Deletes the temporary file.
+	*/
+	public void close() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/*
+	 The encode loop: writes the codeword of every byte of the input.
+	*/
+	private BitWriter encode(OutputStream out) throws IOException {
+		BitWriter bits = new BitWriter(out);
+		table.encode(data, 0, data.length, bits);
+		bits.flush();
+		return bits;
+	}
+
+	/*
+	 Returns 'size' bytes of the named kind of input.
+	*/
+	private static byte[] generate(String input, int size) throws IOException {
+		byte[] data = new byte[size];
+		Random random = new Random(42);
+		switch (input) {
+			case "text":
+				repeat(Files.readAllBytes(Paths.get("alice30.txt")), data);
+				break;
+			case "jpeg":
+				repeat(Files.readAllBytes(Paths.get("ur.jpg")), data);
+				break;
+			case "skewed":
+				// geometric distribution: each character is half as likely as the previous one
+				for (int i = 0; i < size; i++) {
+					data[i] = (byte) Math.min(255, Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE));
+				}
+				break;
+			case "random":
+				random.nextBytes(data);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown input " + input);
+		}
+		return data;
+	}
+
+	private static void repeat(byte[] sample, byte[] data) {
+		for (int i = 0; i < data.length; i += sample.length) {
+			System.arraycopy(sample, 0, data, i, Math.min(sample.length, data.length - i));
+		}
+	}
+}
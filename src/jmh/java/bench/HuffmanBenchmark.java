@@ -0,0 +1,97 @@
+/**
+ * 	@file	HuffmanBenchmark.java
+ * 	@brief	JMH benchmarks of each phase of HuffmanCompress on its own:
+ *		readFile() (counting), buildTree(), createCodewordTable(),
+ *		the encode loop and the decode loop, over every input and
+ *		size given by @Param. Run with `gradle jmh`, which adds the
+ *		gc profiler for the bytes allocated per call; results are
+ *		written to build/results/jmh/ as CSV.
+ *
+ *		The phases are set up by HuffmanPhases (see there for why
+ *		it is loaded by name). Every benchmark returns its result,
+ *		which JMH passes to a Blackhole so the work is not dropped.
+ */
+
+package bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+public class HuffmanBenchmark {
+	@Param({ "text", "jpeg", "skewed", "random" })
+	public String input;
+
+	@Param({ "4096", "65536", "1048576", "16777216" })
+	public int size;
+
+	private AutoCloseable phases;
+	private Callable<Object> readFile;
+	private Callable<Object> buildTree;
+	private Callable<Object> createCodewordTable;
+	private Callable<Object> encode;
+	private Callable<Object> decode;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		Object p = Class.forName("HuffmanPhases").getConstructor(String.class, int.class).newInstance(input, size);
+		Function<String, Callable<Object>> phase = (Function<String, Callable<Object>>) p;
+		phases = (AutoCloseable) p;
+		readFile = phase.apply("readFile");
+		buildTree = phase.apply("buildTree");
+		createCodewordTable = phase.apply("createCodewordTable");
+		encode = phase.apply("encode");
+		decode = phase.apply("decode");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		phases.close();
+	}
+
+	@Benchmark
+	public Object readFile() throws Exception {
+		return readFile.call();
+	}
+
+	@Benchmark
+	public Object buildTree() throws Exception {
+		return buildTree.call();
+	}
+
+	@Benchmark
+	public Object createCodewordTable() throws Exception {
+		return createCodewordTable.call();
+	}
+
+	@Benchmark
+	public Object encode() throws Exception {
+		return encode.call();
+	}
+
+	@Benchmark
+	public Object decode() throws Exception {
+		return decode.call();
+	}
+}